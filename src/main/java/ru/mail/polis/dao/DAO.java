@@ -23,7 +23,10 @@ import ru.mail.polis.Record;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -84,6 +87,29 @@ public interface DAO extends Closeable {
         }
     }
 
+    /**
+     * Takes snapshot for repeatable reads while writes go on, it must be closed after use.
+     */
+    @NotNull
+    Snapshot snapshot() throws IOException;
+
+    /**
+     * Obtains values of several keys, missing keys are absent in the result.
+     * Implementations may read all the keys from the same state of storage.
+     */
+    @NotNull
+    default Map<ByteBuffer, ByteBuffer> getAll(@NotNull Collection<ByteBuffer> keys) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> result = new HashMap<>();
+        for (final ByteBuffer key : keys) {
+            try {
+                result.put(key, get(key));
+            } catch (NoSuchElementException e) {
+                // Absent in the result
+            }
+        }
+        return result;
+    }
+
     /**
      * Inserts or updates value by given key.
      */
@@ -96,6 +122,35 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Applies all mutations of the batch, later mutations of the same key win.
+     * Implementations may apply the batch cheaper than the same mutations one by one.
+     */
+    default void write(@NotNull WriteBatch batch) throws IOException {
+        final DAO dao = this;
+        batch.apply(new WriteBatch.Handler() {
+            @Override
+            public void upsert(
+                    @NotNull final ByteBuffer key,
+                    @NotNull final ByteBuffer value) throws IOException {
+                dao.upsert(key, value);
+            }
+
+            @Override
+            public void remove(@NotNull final ByteBuffer key) throws IOException {
+                dao.remove(key);
+            }
+        });
+    }
+
+    /**
+     * Checks without blocking whether storage keeps up with writes now,
+     * so a write is neither held back nor rejected, unless many writes race for it.
+     */
+    default boolean acceptsWrites() {
+        return true;
+    }
+
     /**
      * Performs compaction.
      */
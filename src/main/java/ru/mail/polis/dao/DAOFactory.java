@@ -19,6 +19,7 @@ package ru.mail.polis.dao;
 import java.io.File;
 import java.io.IOException;
 
+import ru.mail.polis.dao.murzin.DAOConfig;
 import ru.mail.polis.dao.murzin.MyDAO;
 import org.jetbrains.annotations.NotNull;
 
@@ -42,6 +43,20 @@ public final class DAOFactory {
      */
     @NotNull
     public static DAO create(@NotNull final File data) throws IOException {
+        return create(data, new DAOConfig());
+    }
+
+    /**
+     * Construct a {@link DAO} instance with custom parameters.
+     *
+     * @param data   local disk folder to persist the data to
+     * @param config storage parameters, e.g. {@link DAOConfig#mmap} to read SSTables through mmap
+     * @return a storage instance
+     */
+    @NotNull
+    public static DAO create(
+            @NotNull final File data,
+            @NotNull final DAOConfig config) throws IOException {
         if (Runtime.getRuntime().maxMemory() > MAX_HEAP) {
             throw new IllegalStateException("The heap is too big. Consider setting Xmx.");
         }
@@ -54,6 +69,6 @@ public final class DAOFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new MyDAO(data, MAX_HEAP / 32);
+        return new MyDAO(data, config);
     }
 }
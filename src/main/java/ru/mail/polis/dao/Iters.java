@@ -16,11 +16,15 @@
 
 package ru.mail.polis.dao;
 
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import com.google.common.base.Functions;
 
@@ -68,6 +72,150 @@ public final class Iters {
         return new CollapseEqualsIterator<>(iter);
     }
 
+    /**
+     * Merge sorted sources keeping only the newest version of every key, in one pass.
+     * Versions of a key are ordered by {@code versions}, the first one wins,
+     * and among equal versions the one of the source with the least index wins.
+     * Winning versions matching {@code skip}, e.g. tombstones, are dropped along with the older ones.
+     *
+     * @param sources iterators sorted by {@code keys}, each with at most one version of a key
+     * @param keys order of keys
+     * @param versions order of versions of the same key, the newest first
+     * @param skip winning versions which are not returned
+     * @param <E> type of elements
+     * @return iterator over the newest versions sorted by {@code keys}
+     */
+    public static <E> Iterator<E> mergeNewest(
+            @NotNull final List<? extends Iterator<? extends E>> sources,
+            @NotNull final Comparator<? super E> keys,
+            @NotNull final Comparator<? super E> versions,
+            @NotNull final Predicate<? super E> skip) {
+        return new MergeIterator<>(sources, keys, versions, skip);
+    }
+
+    /**
+     * Binary heap of sources ordered by their current elements, so the next element is found
+     * with about {@code log(sources)} comparisons and without intermediate iterators.
+     */
+    private static final class MergeIterator<E> implements Iterator<E> {
+        private final Iterator<? extends E>[] sources;
+        private final Object[] heads;
+        // Indexes of sources which are not exhausted
+        private final int[] heap;
+        private int size;
+        private final Comparator<? super E> keys;
+        private final Comparator<? super E> versions;
+        private final Predicate<? super E> skip;
+
+        private E next;
+
+        @SuppressWarnings("unchecked")
+        MergeIterator(
+                @NotNull final List<? extends Iterator<? extends E>> sources,
+                @NotNull final Comparator<? super E> keys,
+                @NotNull final Comparator<? super E> versions,
+                @NotNull final Predicate<? super E> skip) {
+            this.sources = (Iterator<? extends E>[]) sources.toArray(new Iterator<?>[0]);
+            this.heads = new Object[this.sources.length];
+            this.heap = new int[this.sources.length];
+            this.keys = keys;
+            this.versions = versions;
+            this.skip = skip;
+            for (int i = 0; i < this.sources.length; i++) {
+                if (this.sources[i].hasNext()) {
+                    heads[i] = this.sources[i].next();
+                    heap[size++] = i;
+                }
+            }
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+            this.next = advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public E next() {
+            if (next == null) {
+                throw new NoSuchElementException("Next on exhausted merge");
+            }
+            final E result = next;
+            next = advance();
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        private E head(final int source) {
+            return (E) heads[source];
+        }
+
+        @Nullable
+        private E advance() {
+            while (size > 0) {
+                final E winner = head(heap[0]);
+                pop();
+                // Older versions of the key are on top of the heap now
+                while (size > 0 && keys.compare(head(heap[0]), winner) == 0) {
+                    pop();
+                }
+                if (!skip.test(winner)) {
+                    return winner;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Replace the top source element with its next one, or remove the exhausted source.
+         */
+        private void pop() {
+            final int source = heap[0];
+            if (sources[source].hasNext()) {
+                heads[source] = sources[source].next();
+            } else {
+                heads[source] = null;
+                heap[0] = heap[--size];
+            }
+            siftDown(0);
+        }
+
+        private void siftDown(final int from) {
+            final int source = heap[from];
+            int i = from;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && less(heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if (!less(heap[child], source)) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = source;
+        }
+
+        private boolean less(
+                final int a,
+                final int b) {
+            final E first = head(a);
+            final E second = head(b);
+            int cmp = keys.compare(first, second);
+            if (cmp == 0) {
+                cmp = versions.compare(first, second);
+            }
+            return cmp < 0 || cmp == 0 && a < b;
+        }
+    }
+
     private static class UntilIterator<E extends Comparable<E>> implements Iterator<E> {
         private final Iterator<E> iter;
         private final E until;
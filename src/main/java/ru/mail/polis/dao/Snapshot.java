@@ -0,0 +1,52 @@
+package ru.mail.polis.dao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ru.mail.polis.Record;
+
+/**
+ * Read-only view of storage at the moment it is taken, which is not changed by later writes
+ * and compactions. It must be closed when not needed anymore, as it holds data replaced meanwhile.
+ * It can`t be read after storage is closed.
+ */
+public interface Snapshot extends Closeable {
+    /**
+     * Provides iterator over records as of the snapshot, which starts at given key.
+     */
+    @NotNull
+    Iterator<Record> iterator(@NotNull ByteBuffer from) throws IOException;
+
+    /**
+     * Provides iterator over records as of the snapshot in range [from; to).
+     */
+    @NotNull
+    default Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to == null) {
+            return iterator(from);
+        }
+
+        if (from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+
+        final Record bound = Record.of(to, ByteBuffer.allocate(0));
+        return Iters.until(iterator(from), bound);
+    }
+
+    /**
+     * Obtains value of key as of the snapshot.
+     *
+     * @throws NoSuchElementException if the key was absent
+     */
+    @NotNull
+    ByteBuffer get(@NotNull ByteBuffer key) throws IOException, NoSuchElementException;
+}
@@ -0,0 +1,79 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordered group of upserts and removes applied by {@link DAO#write(WriteBatch)} at once.
+ * Later mutations of the same key win.
+ */
+public final class WriteBatch {
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    // null for remove
+    private final List<ByteBuffer> values = new ArrayList<>();
+
+    /**
+     * Receiver of batch mutations in order they were added.
+     */
+    public interface Handler {
+        void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value) throws IOException;
+
+        void remove(@NotNull ByteBuffer key) throws IOException;
+    }
+
+    /**
+     * Add upsert of value by given key.
+     * @param key inserted or updated key
+     * @param value new value
+     * @return this batch
+     */
+    @NotNull
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        return add(key, value);
+    }
+
+    /**
+     * Add remove of value by given key.
+     * @param key removed key
+     * @return this batch
+     */
+    @NotNull
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        return add(key, null);
+    }
+
+    private WriteBatch add(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer value) {
+        keys.add(key.duplicate());
+        values.add(value == null ? null : value.duplicate());
+        return this;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Pass mutations to handler in order they were added.
+     * @param handler receiver of mutations
+     * @throws IOException if handler failed
+     */
+    public void apply(@NotNull final Handler handler) throws IOException {
+        for (int i = 0; i < keys.size(); i++) {
+            final ByteBuffer value = values.get(i);
+            if (value == null) {
+                handler.remove(keys.get(i).duplicate());
+            } else {
+                handler.upsert(keys.get(i).duplicate(), value.duplicate());
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package ru.mail.polis.dao;
+
+import java.io.IOException;
+
+/**
+ * Write is not applied, as storage can`t keep up with writes at the moment and may be retried later.
+ */
+@SuppressWarnings("serial")
+public class WriteRejectedException extends IOException {
+    public WriteRejectedException(final String s) {
+        super(s);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,313 @@
+package ru.mail.polis.dao.murzin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Memtable which copies keys and values into off-heap slabs, so it holds no heap objects per entry
+ * and may be much larger than the heap allows without adding to GC work.
+ *
+ * <p>Entries are indexed by a skip list, which nodes are kept in the slabs too and linked by address:
+ * number of slab in the high half of {@code long} and offset in the slab in the low half.
+ * A node is address of value record ({@code long}), height ({@code int}), key size ({@code int}),
+ * address of the next node on every level ({@code long} each) and key. A value record is timestamp
+ * ({@code long}), value size ({@code int}, negative for tombstone) and value. Update of a present key
+ * appends a new value record and switches the node to it, the old record stays in the slab.
+ *
+ * <p>Puts are serialized, reads take no locks: a node or a value record is written before it is
+ * published by release store of its address, which readers load with acquire.
+ * Keys and values are returned as read-only slices of the slabs, so they are flushed without copies
+ * to heap. Slabs are released by GC along with the table once no iterator over it is left.
+ */
+@ThreadSafe
+final class ArenaMemTable implements MemTable {
+    static final int SLAB_SIZE = 1024 * 1024;
+    private static final int MAX_HEIGHT = 16;
+    // The head node is at zero address, and nothing links to it
+    private static final long NIL = 0L;
+    private static final int VALUE = 0;
+    private static final int HEIGHT = VALUE + Long.BYTES;
+    private static final int KEY_SIZE = HEIGHT + Integer.BYTES;
+    private static final int NEXT = KEY_SIZE + Integer.BYTES;
+    private static final int TOMBSTONE = -1;
+    // Flips sign of every byte, so unsigned comparison of longs orders bytes as signed ones like ByteBuffer
+    private static final long SIGN_BITS = 0x8080808080808080L;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    // Writable slabs and position in the last one, used by puts only
+    private ByteBuffer[] slabs = new ByteBuffer[0];
+    private int position;
+    // Read-only views of slabs, replaced before anything in a new slab is published
+    private volatile ByteBuffer[] views = new ByteBuffer[0];
+    private final long head;
+    private volatile int height = 1;
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final AtomicLong payloadSize = new AtomicLong();
+    private final AtomicInteger rows = new AtomicInteger();
+
+    ArenaMemTable() {
+        this.head = allocate(NEXT + MAX_HEIGHT * Long.BYTES);
+        assert head == NIL;
+        final ByteBuffer slab = slabs[0];
+        slab.putInt(HEIGHT, MAX_HEIGHT);
+        slab.putInt(KEY_SIZE, 0);
+        // The head is not an entry
+        sizeInBytes.set(0);
+    }
+
+    /**
+     * Used space of slabs, including skip list nodes and values replaced by later updates.
+     */
+    @Override
+    public long sizeInBytes() {
+        return sizeInBytes.get();
+    }
+
+    @Override
+    public long payloadSize() {
+        return payloadSize.get();
+    }
+
+    @Override
+    public int rows() {
+        return rows.get();
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        final long first = findNotLess(bigEndian(from));
+        return new Iterator<>() {
+            long node = first;
+
+            @Override
+            public boolean hasNext() {
+                return node != NIL;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("ArenaMemTable iterator has not next element");
+                }
+                final Cell cell = new Cell(keyOf(node), valueOf(node));
+                node = ArenaMemTable.this.next(node, 0);
+                return cell;
+            }
+        };
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) {
+        final ByteBuffer search = bigEndian(key);
+        final long node = findNotLess(search);
+        if (node == NIL || compare(node, search) != 0) {
+            return null;
+        }
+        return new Cell(key, valueOf(node));
+    }
+
+    @Override
+    public synchronized void put(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        final ByteBuffer search = bigEndian(key);
+        final long[] previous = new long[MAX_HEIGHT];
+        long node = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = next(node, level);
+            while (next != NIL && compare(next, search) < 0) {
+                node = next;
+                next = next(node, level);
+            }
+            previous[level] = node;
+        }
+        final long found = next(previous[0], 0);
+        if (found != NIL && compare(found, search) == 0) {
+            payloadSize.addAndGet(sizeOf(value) - sizeOf(valueOf(found)));
+            final long record = writeValue(value);
+            LONGS.setRelease(writableSlabOf(found), offsetOf(found) + VALUE, record);
+            return;
+        }
+
+        final int nodeHeight = randomHeight();
+        final int keySize = search.remaining();
+        final long record = writeValue(value);
+        final long inserted = allocate(NEXT + nodeHeight * Long.BYTES + keySize);
+        final ByteBuffer slab = writableSlabOf(inserted);
+        final int offset = offsetOf(inserted);
+        slab.putLong(offset + VALUE, record);
+        slab.putInt(offset + HEIGHT, nodeHeight);
+        slab.putInt(offset + KEY_SIZE, keySize);
+        for (int level = 0; level < nodeHeight; level++) {
+            slab.putLong(offset + NEXT + level * Long.BYTES, next(previous[level], level));
+        }
+        slab.duplicate().position(offset + NEXT + nodeHeight * Long.BYTES).put(search.duplicate());
+        // Linked bottom up, so a node reachable on a level is reachable on all lower ones
+        for (int level = 0; level < nodeHeight; level++) {
+            final long link = previous[level];
+            LONGS.setRelease(writableSlabOf(link), offsetOf(link) + NEXT + level * Long.BYTES, inserted);
+        }
+        if (nodeHeight > height) {
+            height = nodeHeight;
+        }
+        rows.incrementAndGet();
+        payloadSize.addAndGet(keySize + sizeOf(value));
+    }
+
+    private static int sizeOf(final Value value) {
+        return value.isRemoved() ? 0 : value.getData().remaining();
+    }
+
+    private static int randomHeight() {
+        int result = 1;
+        while (result < MAX_HEIGHT && (ThreadLocalRandom.current().nextInt() & 3) == 0) {
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * The first node which key is not less than given one.
+     * It is the node seen by the search, as a node may be inserted before it right after.
+     */
+    private long findNotLess(final ByteBuffer key) {
+        long node = head;
+        long next = NIL;
+        for (int level = height - 1; level >= 0; level--) {
+            next = next(node, level);
+            while (next != NIL && compare(next, key) < 0) {
+                node = next;
+                next = next(node, level);
+            }
+        }
+        return next;
+    }
+
+    private long writeValue(final Value value) {
+        final ByteBuffer data = value.isRemoved() ? null : value.getData();
+        final int size = data == null ? 0 : data.remaining();
+        final long record = allocate(Long.BYTES + Integer.BYTES + size);
+        final ByteBuffer slab = writableSlabOf(record);
+        final int offset = offsetOf(record);
+        slab.putLong(offset, value.getTimeStamp());
+        slab.putInt(offset + Long.BYTES, data == null ? TOMBSTONE : size);
+        if (data != null) {
+            slab.duplicate().position(offset + Long.BYTES + Integer.BYTES).put(data);
+        }
+        return record;
+    }
+
+    private long allocate(final int size) {
+        final int aligned = (size + Long.BYTES - 1) & -Long.BYTES;
+        if (slabs.length == 0 || position + aligned > slabs[slabs.length - 1].capacity()) {
+            // Entries larger than a slab get a slab of their own
+            final int capacity = Math.max(SLAB_SIZE, aligned);
+            final ByteBuffer slab = ByteBuffer.allocateDirect(capacity + Long.BYTES - 1).alignedSlice(Long.BYTES);
+            slabs = Arrays.copyOf(slabs, slabs.length + 1);
+            slabs[slabs.length - 1] = slab;
+            final ByteBuffer[] newViews = Arrays.copyOf(views, views.length + 1);
+            newViews[newViews.length - 1] = slab.asReadOnlyBuffer();
+            views = newViews;
+            position = 0;
+        }
+        final long address = ((long) (slabs.length - 1) << 32) | position;
+        position += aligned;
+        sizeInBytes.addAndGet(aligned);
+        return address;
+    }
+
+    private ByteBuffer writableSlabOf(final long address) {
+        return slabs[(int) (address >>> 32)];
+    }
+
+    private ByteBuffer slabOf(final long address) {
+        return views[(int) (address >>> 32)];
+    }
+
+    private static int offsetOf(final long address) {
+        return (int) address;
+    }
+
+    private long next(
+            final long node,
+            final int level) {
+        return (long) LONGS.getAcquire(slabOf(node), offsetOf(node) + NEXT + level * Long.BYTES);
+    }
+
+    private ByteBuffer keyOf(final long node) {
+        final ByteBuffer slab = slabOf(node);
+        final int offset = offsetOf(node);
+        final int start = offset + NEXT + slab.getInt(offset + HEIGHT) * Long.BYTES;
+        return slice(slab, start, slab.getInt(offset + KEY_SIZE));
+    }
+
+    private Value valueOf(final long node) {
+        final long record = (long) LONGS.getAcquire(slabOf(node), offsetOf(node) + VALUE);
+        final ByteBuffer slab = slabOf(record);
+        final int offset = offsetOf(record);
+        final long timeStamp = slab.getLong(offset);
+        final int size = slab.getInt(offset + Long.BYTES);
+        if (size == TOMBSTONE) {
+            return new Value(timeStamp, null);
+        }
+        return new Value(timeStamp, slice(slab, offset + Long.BYTES + Integer.BYTES, size));
+    }
+
+    private static ByteBuffer slice(
+            final ByteBuffer slab,
+            final int offset,
+            final int size) {
+        return slab.duplicate()
+                .position(offset)
+                .limit(offset + size)
+                .slice();
+    }
+
+    /**
+     * Compare key of node with given big-endian key the way {@link ByteBuffer#compareTo} does.
+     */
+    private int compare(
+            final long node,
+            final ByteBuffer key) {
+        final ByteBuffer slab = slabOf(node);
+        final int offset = offsetOf(node);
+        final int size = slab.getInt(offset + KEY_SIZE);
+        final int start = offset + NEXT + slab.getInt(offset + HEIGHT) * Long.BYTES;
+        final int keyStart = key.position();
+        final int common = Math.min(size, key.remaining());
+        int i = 0;
+        for (; i + Long.BYTES <= common; i += Long.BYTES) {
+            final long a = slab.getLong(start + i);
+            final long b = key.getLong(keyStart + i);
+            if (a != b) {
+                return Long.compareUnsigned(a ^ SIGN_BITS, b ^ SIGN_BITS);
+            }
+        }
+        for (; i < common; i++) {
+            final int cmp = Byte.compare(slab.get(start + i), key.get(keyStart + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(size, key.remaining());
+    }
+
+    private static ByteBuffer bigEndian(final ByteBuffer key) {
+        return key.order() == ByteOrder.BIG_ENDIAN ? key : key.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+}
@@ -0,0 +1,96 @@
+package ru.mail.polis.dao.murzin;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Block of SSTable cells in ascending key order.
+ *
+ * <p>Layout: cells, then offset of every cell from the block start ({@code int} each),
+ * then number of cells ({@code int}). A cell is key size ({@code int}), key, timestamp
+ * ({@code long}, negative for tombstone) and, unless it is a tombstone, value size ({@code int})
+ * and value. Keys and values are returned as slices of the block without copying.
+ */
+final class Block {
+    private final ByteBuffer data;
+    private final int cells;
+    private final int offsetsStart;
+
+    Block(@NotNull final ByteBuffer data) {
+        this.data = data;
+        this.cells = data.getInt(data.limit() - Integer.BYTES);
+        this.offsetsStart = data.limit() - Integer.BYTES * (cells + 1);
+    }
+
+    int size() {
+        return cells;
+    }
+
+    int sizeInBytes() {
+        return data.capacity();
+    }
+
+    ByteBuffer keyAt(final int i) {
+        assert 0 <= i && i < cells;
+        final int offset = offsetOf(i);
+        final int keySize = data.getInt(offset);
+        return slice(offset + Integer.BYTES, keySize);
+    }
+
+    Cell cellAt(final int i) {
+        assert 0 <= i && i < cells;
+        int offset = offsetOf(i);
+
+        // Key
+        final int keySize = data.getInt(offset);
+        offset += Integer.BYTES;
+        final ByteBuffer key = slice(offset, keySize);
+        offset += keySize;
+
+        // Timestamp
+        final long timeStamp = data.getLong(offset);
+        offset += Long.BYTES;
+
+        if (timeStamp < 0) {
+            return new Cell(key, new Value(-timeStamp, null));
+        } else {
+            final int valueSize = data.getInt(offset);
+            offset += Integer.BYTES;
+            return new Cell(key, new Value(timeStamp, slice(offset, valueSize)));
+        }
+    }
+
+    /**
+     * Binary search of the first cell with key not less than given one.
+     * @param from key to look for
+     * @return position of cell or {@link #size()} if all keys are less
+     */
+    int position(@NotNull final ByteBuffer from) {
+        int left = 0;
+        int right = cells - 1;
+        while (left <= right) {
+            final int mid = left + ((right - left) >> 1);
+            final int cmp = from.compareTo(keyAt(mid));
+            if (cmp < 0) {
+                right = mid - 1;
+            } else if (cmp > 0) {
+                left = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return left;
+    }
+
+    private int offsetOf(final int i) {
+        return data.getInt(offsetsStart + Integer.BYTES * i);
+    }
+
+    private ByteBuffer slice(final int offset, final int size) {
+        return data.duplicate()
+                .position(offset)
+                .limit(offset + size)
+                .slice();
+    }
+}
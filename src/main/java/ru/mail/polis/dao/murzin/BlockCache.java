@@ -0,0 +1,125 @@
+package ru.mail.polis.dao.murzin;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of SSTable blocks bounded by their total size in bytes, shared by all tables of a DAO.
+ * Least recently used blocks are evicted first.
+ */
+public final class BlockCache {
+    /** Approximate heap footprint of a cached block besides its data. */
+    private static final int BLOCK_OVERHEAD = 128;
+
+    private final Cache<BlockId, Block> cache;
+    private final AtomicLong tables = new AtomicLong();
+
+    /**
+     * Create cache.
+     * @param capacity maximum total size of cached blocks in bytes
+     */
+    BlockCache(final long capacity) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(capacity)
+                .weigher((BlockId id, Block block) -> block.sizeInBytes() + BLOCK_OVERHEAD)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Identifier of a table unique within this cache, as generations are reused by compaction.
+     * @return new table identifier
+     */
+    long nextTableId() {
+        return tables.incrementAndGet();
+    }
+
+    /**
+     * Get cached block or load and cache it.
+     * @param table identifier of table
+     * @param block index of block in table
+     * @param loader reader of block from disk
+     * @return block
+     * @throws IOException if block read is failed
+     */
+    Block get(
+            final long table,
+            final int block,
+            @NotNull final BlockLoader loader) throws IOException {
+        try {
+            return cache.get(new BlockId(table, block), () -> loader.load(block));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new CellReadRuntimeException("Unable to load block " + block, e.getCause());
+        }
+    }
+
+    /**
+     * Drop all blocks of closed table by their keys, so other tables in the cache are not scanned.
+     * @param table identifier of table
+     * @param blocks number of blocks in table
+     */
+    void invalidate(
+            final long table,
+            final int blocks) {
+        for (int i = 0; i < blocks; i++) {
+            cache.invalidate(new BlockId(table, i));
+        }
+    }
+
+    /**
+     * Number of cached blocks.
+     * @return approximate number of blocks
+     */
+    long size() {
+        return cache.size();
+    }
+
+    /**
+     * Hit, miss and eviction counters.
+     * @return snapshot of counters
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    @FunctionalInterface
+    interface BlockLoader {
+        Block load(int block) throws IOException;
+    }
+
+    private static final class BlockId {
+        private final long table;
+        private final int block;
+
+        BlockId(final long table, final int block) {
+            this.table = table;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BlockId)) {
+                return false;
+            }
+            final BlockId other = (BlockId) o;
+            return table == other.table && block == other.block;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(table) * 31 + block;
+        }
+    }
+}
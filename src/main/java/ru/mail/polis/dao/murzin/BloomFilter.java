@@ -0,0 +1,184 @@
+package ru.mail.polis.dao.murzin;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Bloom filter over keys of one SSTable.
+ * Answers whether a key is definitely absent from the table without touching the table itself.
+ *
+ * <p>File of filter is {@link #FORMAT} ({@code int}), number of hashes ({@code int}),
+ * number of words ({@code int}) and words of bits ({@code long}). Filters of older format
+ * start with number of hashes and index only the first 2^31 bits, they are still read.
+ */
+final class BloomFilter {
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+    private static final String TEMP = ".tmp";
+    // Negative, so it is never taken for number of hashes of older format
+    private static final int FORMAT = -2;
+    private static final int HEADER_SIZE = Integer.BYTES * 3;
+    private static final int LEGACY_HEADER_SIZE = Integer.BYTES * 2;
+
+    private final int hashes;
+    private final long[] bits;
+    private final boolean legacy;
+
+    private BloomFilter(
+            final int hashes,
+            final long[] bits,
+            final boolean legacy) {
+        this.hashes = hashes;
+        this.bits = bits;
+        this.legacy = legacy;
+    }
+
+    /**
+     * 64-bit hash of key remaining bytes which does not allocate, as it is computed for every flushed key.
+     * @param key key to hash
+     * @return hash of key
+     */
+    private static long hash(@NotNull final ByteBuffer key) {
+        final int limit = key.limit();
+        int i = key.position();
+        long h = SEED ^ (limit - i);
+        for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+            h = (h ^ mix(key.getLong(i))) * SEED;
+        }
+        for (; i < limit; i++) {
+            h = (h ^ mix(key.get(i))) * SEED;
+        }
+        return mix(h);
+    }
+
+    private static long mix(final long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Create empty filter sized for given number of keys.
+     * @param expectedKeys estimated number of keys, more keys only increase false positive rate
+     * @return empty filter
+     */
+    static BloomFilter create(final int expectedKeys) {
+        final double ln2 = Math.log(2);
+        final int keys = Math.max(expectedKeys, 1);
+        final long bitsCount = Math.max(Long.SIZE, (long) (-keys * Math.log(FALSE_POSITIVE_PROBABILITY) / (ln2 * ln2)));
+        final int words = (int) Math.min(Integer.MAX_VALUE / Long.BYTES, (bitsCount + Long.SIZE - 1) / Long.SIZE);
+        final int hashes = Math.max(1, (int) Math.round((double) words * Long.SIZE / keys * ln2));
+        return new BloomFilter(hashes, new long[words], false);
+    }
+
+    void put(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        for (int i = 1; i <= hashes; i++) {
+            final long bit = bitOf(hash, i);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        for (int i = 1; i <= hashes; i++) {
+            final long bit = bitOf(hash, i);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Index of i-th bit of key, the second hash is derived from the first one,
+     * so all bits of a filter larger than 2^31 are used.
+     */
+    private long bitOf(final long hash, final int i) {
+        final long size = (long) bits.length * Long.SIZE;
+        if (legacy) {
+            final int h1 = (int) hash;
+            final int h2 = (int) (hash >>> 32);
+            return ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+        }
+        return ((hash + i * mix(hash ^ SEED)) & Long.MAX_VALUE) % size;
+    }
+
+    /**
+     * Write filter to file atomically, so partially written filter is never seen.
+     * @param to destination file
+     * @throws IOException if write is failed
+     */
+    void write(@NotNull final File to) throws IOException {
+        assert !legacy;
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + Long.BYTES * bits.length);
+        buffer.putInt(FORMAT);
+        buffer.putInt(hashes);
+        buffer.putInt(bits.length);
+        buffer.asLongBuffer().put(bits);
+        buffer.rewind();
+        final File temp = new File(to.getPath() + TEMP);
+        try (FileChannel fc = FileChannel.open(
+                temp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        )) {
+            while (buffer.hasRemaining()) {
+                fc.write(buffer);
+            }
+            // Otherwise the renamed file may be left zeroed by power loss, and the filter would skip present keys
+            fc.force(true);
+        }
+        Files.move(temp.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        FileTableWriter.forceDirectory(to);
+    }
+
+    /**
+     * Read filter written by {@link #write(File)}.
+     * @param from file with filter
+     * @return filter or null if there is no valid filter in file
+     * @throws IOException if read is failed
+     */
+    static BloomFilter read(@NotNull final File from) throws IOException {
+        if (!from.exists()) {
+            return null;
+        }
+        try (FileChannel fc = FileChannel.open(from.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (fc.read(header, 0) < LEGACY_HEADER_SIZE) {
+                return null;
+            }
+            header.rewind();
+            final boolean legacy = header.getInt(0) != FORMAT;
+            if (!legacy) {
+                header.getInt();
+            }
+            final int headerSize = legacy ? LEGACY_HEADER_SIZE : HEADER_SIZE;
+            final int hashes = header.getInt();
+            final int words = header.getInt();
+            if (hashes <= 0 || words <= 0 || fc.size() != headerSize + (long) Long.BYTES * words) {
+                return null;
+            }
+            final ByteBuffer data = ByteBuffer.allocate(Long.BYTES * words);
+            while (data.hasRemaining()) {
+                fc.read(data, headerSize + data.position());
+            }
+            final long[] bits = new long[words];
+            data.rewind();
+            data.asLongBuffer().get(bits);
+            return new BloomFilter(hashes, bits, legacy);
+        }
+    }
+}
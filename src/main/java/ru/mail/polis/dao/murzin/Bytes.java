@@ -1,22 +0,0 @@
-package ru.mail.polis.dao.murzin;
-
-import java.nio.ByteBuffer;
-
-public final class Bytes {
-    private Bytes() {
-    }
-
-    static ByteBuffer fromInt(final int value) {
-        final ByteBuffer result = ByteBuffer.allocate(Integer.BYTES);
-        result.putInt(value);
-        result.rewind();
-        return result;
-    }
-
-    static ByteBuffer fromLong(final long value) {
-        final ByteBuffer result = ByteBuffer.allocate(Long.BYTES);
-        result.putLong(value);
-        result.rewind();
-        return result;
-    }
-}
\ No newline at end of file
@@ -5,8 +5,10 @@ import java.nio.ByteBuffer;
 import java.util.Comparator;
 
 public class Cell {
-    public static final Comparator<Cell> COMPARATOR =
-            Comparator.comparing(Cell::getKey).thenComparing(Cell::getValue);
+    /** Order of keys. */
+    public static final Comparator<Cell> KEY_ORDER = (a, b) -> a.key.compareTo(b.key);
+    /** Order of versions of the same key, the newest first. */
+    public static final Comparator<Cell> VERSION_ORDER = (a, b) -> a.value.compareTo(b.value);
 
     private final ByteBuffer key;
     private final Value value;
@@ -0,0 +1,369 @@
+package ru.mail.polis.dao.murzin;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of memtable updates.
+ *
+ * <p>The log is a sequence of segments, one per memtable. A segment is deleted as soon as
+ * its memtable is flushed to SSTable, so segments left on disk hold updates which were
+ * not flushed and are replayed on start. A record is payload size ({@code int}),
+ * CRC32 of payload ({@code int}) and payload, which is a cell in the {@link Block} layout.
+ * Replay of a segment stops at the first torn or corrupted record.
+ */
+final class CommitLog implements Closeable {
+    private static final String BASE_NAME = "_CommitLog";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+
+    private final File base;
+    private final DAOConfig.Durability durability;
+    private final long groupCommitMillis;
+    private final NavigableMap<Integer, File> recovered = new TreeMap<>();
+    private final Map<Integer, FileChannel> segments = new HashMap<>();
+    private final Object syncMonitor = new Object();
+    private final CRC32 crc = new CRC32();
+    private final Thread syncer;
+
+    private int lastSegment;
+    private ByteBuffer record = ByteBuffer.allocate(4 * 1024);
+    private volatile long written;
+    private volatile long synced;
+    private int waiters;
+    // Failure of group commit, after which no update is acknowledged
+    private volatile IOException syncFailure;
+    private volatile boolean closed;
+
+    /**
+     * Open log in given directory, segments found there are kept for {@link #replay(Replayer)}.
+     * @param base directory of DAO
+     * @param durability when updates are forced to disk
+     * @param groupCommitMillis period of group commit in milliseconds
+     */
+    CommitLog(
+            @NotNull final File base,
+            @NotNull final DAOConfig.Durability durability,
+            final long groupCommitMillis) {
+        this.base = base;
+        this.durability = durability;
+        this.groupCommitMillis = groupCommitMillis;
+        final File[] files = base.listFiles((dir, name) -> name.endsWith(BASE_NAME + SUFFIX));
+        if (files != null) {
+            for (final File file : files) {
+                final int segment = Integer.parseInt(file.getName().split("_", -1)[0]);
+                recovered.put(segment, file);
+                lastSegment = Math.max(lastSegment, segment);
+            }
+        }
+        if (durability == DAOConfig.Durability.GROUP) {
+            assert groupCommitMillis > 0;
+            this.syncer = new Thread(this::syncLoop, "commit-log-syncer");
+            this.syncer.setDaemon(true);
+            this.syncer.start();
+        } else {
+            this.syncer = null;
+        }
+    }
+
+    /**
+     * Start new segment for new memtable.
+     * @return identifier of new segment
+     * @throws IOException if segment can`t be created
+     */
+    synchronized int roll() throws IOException {
+        final int segment = ++lastSegment;
+        segments.put(segment, FileChannel.open(
+                fileOf(segment).toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE));
+        return segment;
+    }
+
+    /**
+     * Append updates to segment of their memtable with as few writes as possible.
+     * Writers of a memtable being replaced still append to its segment, while writers
+     * of the new memtable append to the next one.
+     * In {@link DAOConfig.Durability#SYNC} mode they are forced to disk once before return,
+     * unless they are replayed, as replay forces all of them at the end.
+     * @param segment identifier of segment
+     * @param keys keys of updates
+     * @param values values or tombstones with their timestamps
+     * @param replayed whether updates are replayed by {@link #replay(Replayer)}
+     * @return log position of the last update to pass to {@link #awaitDurable(long)}
+     * @throws IOException if write is failed or the log failed to force records before
+     */
+    long append(
+            final int segment,
+            @NotNull final List<ByteBuffer> keys,
+            @NotNull final List<Value> values,
+            final boolean replayed) throws IOException {
+        assert keys.size() == values.size();
+        checkSynced();
+        synchronized (this) {
+            final FileChannel channel = segments.get(segment);
+            if (channel == null) {
+                throw new ClosedChannelException();
+            }
+            record.clear();
+            for (int i = 0; i < keys.size(); i++) {
+                final ByteBuffer key = keys.get(i);
+                final Value value = values.get(i);
+                final int payloadSize = Integer.BYTES + key.remaining() + Long.BYTES
+                        + (value.isRemoved() ? 0 : Integer.BYTES + value.getData().remaining());
+                if (record.remaining() < HEADER_SIZE + payloadSize) {
+                    writeRecords(channel);
+                    if (record.capacity() < HEADER_SIZE + payloadSize) {
+                        record = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+                    }
+                }
+                putRecord(key, value, payloadSize);
+            }
+            writeRecords(channel);
+            if (durability == DAOConfig.Durability.SYNC && !replayed) {
+                channel.force(false);
+                synced = written;
+            }
+            return written;
+        }
+    }
+
+    private void putRecord(
+            final ByteBuffer key,
+            final Value value,
+            final int payloadSize) {
+        final int start = record.position();
+        record.putInt(payloadSize);
+        record.position(start + HEADER_SIZE);
+        record.putInt(key.remaining());
+        record.put(key.duplicate());
+        if (value.isRemoved()) {
+            record.putLong(-value.getTimeStamp());
+        } else {
+            final ByteBuffer data = value.getData();
+            record.putLong(value.getTimeStamp());
+            record.putInt(data.remaining());
+            record.put(data);
+        }
+        crc.reset();
+        crc.update(record.duplicate().position(start + HEADER_SIZE).limit(record.position()));
+        record.putInt(start + Integer.BYTES, (int) crc.getValue());
+    }
+
+    private void writeRecords(final FileChannel channel) throws IOException {
+        record.flip();
+        written += record.remaining();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        record.clear();
+    }
+
+    /**
+     * Wait until update at given position is forced to disk by group commit.
+     * The first waiter wakes up syncer, updates appended while it forces the log
+     * are forced together by the next force. Returns immediately in other modes.
+     * @param position position returned by {@link #append(int, List, List, boolean)}
+     * @throws IOException if group commit failed to force the log
+     */
+    void awaitDurable(final long position) throws IOException {
+        if (durability != DAOConfig.Durability.GROUP || synced >= position) {
+            return;
+        }
+        synchronized (syncMonitor) {
+            waiters++;
+            syncMonitor.notifyAll();
+            try {
+                while (synced < position && !closed && syncFailure == null) {
+                    syncMonitor.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiters--;
+            }
+        }
+        if (synced < position) {
+            checkSynced();
+        }
+    }
+
+    /**
+     * Fail the update if a force of the log failed before: records written since may be lost
+     * even if a later force succeeds, as the kernel may drop pages which it failed to write.
+     */
+    private void checkSynced() throws IOException {
+        final IOException failure = syncFailure;
+        if (failure != null) {
+            throw new IOException("Commit log can`t be forced to disk", failure);
+        }
+    }
+
+    private void syncLoop() {
+        while (!closed) {
+            try {
+                synchronized (syncMonitor) {
+                    if (waiters == 0 || written == synced) {
+                        syncMonitor.wait(groupCommitMillis);
+                    }
+                }
+                sync();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                synchronized (syncMonitor) {
+                    syncFailure = e;
+                    syncMonitor.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Force all appended records to disk.
+     * @throws IOException if force is failed
+     */
+    void sync() throws IOException {
+        final long target;
+        final List<FileChannel> channels;
+        synchronized (this) {
+            target = written;
+            if (target == synced) {
+                return;
+            }
+            channels = new ArrayList<>(segments.values());
+        }
+        for (final FileChannel channel : channels) {
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // Segment is deleted, as its memtable is already flushed
+            }
+        }
+        synchronized (syncMonitor) {
+            // Concurrent sync on close may have covered more already
+            if (target > synced) {
+                synced = target;
+            }
+            syncMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Delete segment whose memtable is flushed.
+     * @param segment identifier of segment
+     * @throws IOException if segment can`t be deleted
+     */
+    void delete(final int segment) throws IOException {
+        final FileChannel channel;
+        synchronized (this) {
+            channel = segments.remove(segment);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        Files.deleteIfExists(fileOf(segment).toPath());
+    }
+
+    /**
+     * Pass updates of segments found on open to consumer in the order they were written.
+     * Consumer must append them to current segment, then replayed segments are deleted.
+     * @param consumer receiver of key and value
+     * @throws IOException if segment can`t be read or deleted
+     */
+    void replay(@NotNull final Replayer consumer) throws IOException {
+        for (final File file : recovered.values()) {
+            final ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            final CRC32 checksum = new CRC32();
+            while (log.remaining() >= HEADER_SIZE) {
+                final int payloadSize = log.getInt(log.position());
+                if (payloadSize <= 0 || payloadSize > log.remaining() - HEADER_SIZE) {
+                    break;
+                }
+                final int expected = log.getInt(log.position() + Integer.BYTES);
+                final ByteBuffer payload = log.duplicate()
+                        .position(log.position() + HEADER_SIZE)
+                        .limit(log.position() + HEADER_SIZE + payloadSize)
+                        .slice();
+                checksum.reset();
+                checksum.update(payload.duplicate());
+                if ((int) checksum.getValue() != expected) {
+                    break;
+                }
+                log.position(log.position() + HEADER_SIZE + payloadSize);
+
+                final int keySize = payload.getInt();
+                final ByteBuffer key = payload.duplicate().limit(payload.position() + keySize).slice();
+                payload.position(payload.position() + keySize);
+                final long timeStamp = payload.getLong();
+                if (timeStamp < 0) {
+                    consumer.replay(key, new Value(-timeStamp, null));
+                } else {
+                    final int valueSize = payload.getInt();
+                    final ByteBuffer data = payload.duplicate().limit(payload.position() + valueSize).slice();
+                    consumer.replay(key, new Value(timeStamp, data));
+                }
+            }
+        }
+        // Replayed updates must be durable in the current segment before old ones are gone
+        sync();
+        for (final File file : recovered.values()) {
+            Files.delete(file.toPath());
+        }
+        recovered.clear();
+    }
+
+    @FunctionalInterface
+    interface Replayer {
+        void replay(@NotNull ByteBuffer key, @NotNull Value value) throws IOException;
+    }
+
+    private File fileOf(final int segment) {
+        return new File(base, segment + BASE_NAME + SUFFIX);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (syncer != null) {
+            // Not interrupted, as interrupt during force closes the channel
+            try {
+                syncer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            sync();
+        } finally {
+            synchronized (syncMonitor) {
+                syncMonitor.notifyAll();
+            }
+            final List<FileChannel> channels;
+            synchronized (this) {
+                channels = new ArrayList<>(segments.values());
+                segments.clear();
+            }
+            for (final FileChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+}
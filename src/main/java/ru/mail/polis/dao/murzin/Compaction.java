@@ -0,0 +1,53 @@
+package ru.mail.polis.dao.murzin;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+/**
+ * Merge of SSTables chosen by {@link CompactionStrategy}.
+ * Output of level 0 is a single table which takes place of the newest input table.
+ * Output of deeper levels is split into tables of limited size with disjoint key ranges.
+ */
+final class Compaction {
+    private final Map<Integer, FileTable> inputs;
+    private final int level;
+    private final boolean dropTombstones;
+    private final long maxTableSize;
+
+    /**
+     * Describe merge.
+     * @param inputs merged tables by generation
+     * @param level level of output tables
+     * @param dropTombstones whether tombstones can be dropped, as no older tables are left
+     * @param maxTableSize approximate size in bytes of output tables of deeper levels
+     */
+    Compaction(
+            @NotNull final Map<Integer, FileTable> inputs,
+            final int level,
+            final boolean dropTombstones,
+            final long maxTableSize) {
+        assert !inputs.isEmpty();
+        this.inputs = inputs;
+        this.level = level;
+        this.dropTombstones = dropTombstones;
+        this.maxTableSize = maxTableSize;
+    }
+
+    @NotNull
+    Map<Integer, FileTable> getInputs() {
+        return inputs;
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    boolean isDropTombstones() {
+        return dropTombstones;
+    }
+
+    long getMaxTableSize() {
+        return maxTableSize;
+    }
+}
@@ -0,0 +1,21 @@
+package ru.mail.polis.dao.murzin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Policy of automatic compaction, which is asked for the next merge after every flush
+ * and after every merge until it has nothing to merge.
+ */
+interface CompactionStrategy {
+    /**
+     * Choose tables to merge.
+     * @param tables current SSTables
+     * @return merge to run or null if nothing should be merged now
+     * @throws IOException if key range of table can`t be read
+     */
+    @Nullable
+    Compaction select(@NotNull TableSet tables) throws IOException;
+}
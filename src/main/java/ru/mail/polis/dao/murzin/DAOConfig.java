@@ -0,0 +1,140 @@
+package ru.mail.polis.dao.murzin;
+
+/**
+ * Tunable parameters of {@link MyDAO}.
+ */
+public class DAOConfig {
+    /**
+     * When updates written to commit log are forced to disk.
+     */
+    public enum Durability {
+        /** Every update is forced to disk before it is acknowledged. */
+        SYNC,
+        /** Updates wait for force to disk which is shared by all updates made meanwhile. */
+        GROUP,
+        /** Updates are only written to OS, they survive process crash but not OS crash. */
+        NONE
+    }
+
+    /**
+     * Estimated memory in bytes retained by memtable, including overhead of its entries,
+     * after which it is flushed to disk. Defaults to 1/32 of 256 MB heap DAO is run with.
+     */
+    public long flushThreshold = 8 * 1024 * 1024;
+
+    /**
+     * Number of threads flushing memtables, which write SSTables in parallel but publish them
+     * in order of memtables.
+     */
+    public int flushThreads = 1;
+
+    /**
+     * Number of full memtables waiting for flushers, after which writes are held back
+     * by {@link #writeStall} policy.
+     */
+    public int flushQueueDepth = 2;
+
+    /**
+     * What happens to writes while flushers can`t keep up with them.
+     */
+    public enum WriteStall {
+        /** Writes wait until a memtable is taken by flusher. */
+        BLOCK,
+        /** Writes are delayed once the flush queue is half full and wait when it is full. */
+        DELAY,
+        /** Writes fail with {@link ru.mail.polis.dao.WriteRejectedException} when the flush queue is full. */
+        REJECT
+    }
+
+    /**
+     * Policy for writes when the flush queue is full.
+     */
+    public WriteStall writeStall = WriteStall.BLOCK;
+
+    /**
+     * Delay in milliseconds of every write by {@link WriteStall#DELAY} policy.
+     */
+    public long writeDelayMillis = 1;
+
+    /**
+     * Keep memtable keys and values in off-heap slabs instead of heap buffers, so memtables may be
+     * much larger than the heap. Their size, compared with {@link #flushThreshold}, is then the size
+     * of used slab space, including skip list nodes and values replaced by later updates.
+     * Off-heap memory is limited by {@code -XX:MaxDirectMemorySize}.
+     */
+    public boolean offHeapMemTable;
+
+    /**
+     * Read SSTables through memory mapped buffers instead of positional {@code FileChannel} reads.
+     */
+    public boolean mmap;
+
+    /**
+     * Approximate size of SSTable block in bytes, only one index entry is kept in memory per block.
+     */
+    public int blockSize = 4 * 1024;
+
+    /**
+     * Size in bytes of block cache shared by all SSTables, zero disables the cache.
+     * It is not used in {@link #mmap} mode, where blocks are kept in page cache.
+     * Defaults to 1/32 of 256 MB heap DAO is run with.
+     */
+    public long blockCacheSize = 8 * 1024 * 1024;
+
+    /**
+     * Read only footers of SSTables on open, so DAO starts at once regardless of number of tables.
+     * Indexes and Bloom filters are then loaded by {@link #warmUpThreads} or on first access.
+     */
+    public boolean lazyOpen;
+
+    /**
+     * Number of threads loading indexes of SSTables in background after {@link #lazyOpen},
+     * zero leaves every index to be loaded on first access to its table.
+     */
+    public int warmUpThreads = 1;
+
+    /**
+     * Durability of updates in commit log.
+     */
+    public Durability durability = Durability.NONE;
+
+    /**
+     * Maximum period in milliseconds between forces of commit log for {@link Durability#GROUP}.
+     * Waiting updates trigger force earlier.
+     */
+    public long groupCommitMillis = 10;
+
+    /**
+     * How SSTables are merged by automatic compaction.
+     */
+    public enum CompactionStyle {
+        /** Tables of similar size are merged, which is cheap for writes. */
+        SIZE_TIERED,
+        /** Tables are kept in levels of disjoint tables, so reads probe one table per level. */
+        LEVELED
+    }
+
+    /**
+     * Strategy of automatic compaction. Levels of tables are kept in data directory,
+     * so tables of a directory compacted by leveled compaction are read correctly with any strategy.
+     */
+    public CompactionStyle compactionStyle = CompactionStyle.SIZE_TIERED;
+
+    /**
+     * Number of SSTables of similar size which are merged in background after flush,
+     * or number of flushed SSTables which are merged into level 1 by leveled compaction.
+     * Less than two disables automatic compaction.
+     */
+    public int compactionThreshold = 4;
+
+    /**
+     * Maximum number of SSTables merged at once by size-tiered compaction.
+     */
+    public int maxCompactionTables = 32;
+
+    /**
+     * Capacity in bytes of level 1 of leveled compaction, every next level is 10 times larger.
+     * Tables of levels are about a tenth of it.
+     */
+    public long levelBaseSize = 10 * 1024 * 1024;
+}
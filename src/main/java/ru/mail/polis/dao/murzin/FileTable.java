@@ -1,129 +1,375 @@
 package ru.mail.polis.dao.murzin;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Sorted String Table.
+ *
+ * <p>Current (block) format: {@link Block}s of cells, then sparse index with offset
+ * ({@code long}), separator key size ({@code int}) and separator key of every block,
+ * then the first and the last key of the table, then footer: index offset ({@code long}),
+ * number of blocks ({@code int}), number of rows ({@code long}), sizes of the first
+ * and the last key ({@code int}), format version ({@code int}) and {@link #MAGIC} ({@code long}).
+ * Separator of a block is not greater than its first key and greater than all keys of previous blocks.
+ * Tables of version 2 have neither the keys nor their sizes, they are still read.
+ *
+ * <p>Legacy format without footer: cells, offset of every cell ({@code long}),
+ * then number of rows ({@code long}). It is still read, but not written anymore.
+ *
+ * <p>Only the footer and the first and the last key are read on open. The index and Bloom filter
+ * are loaded by {@link #load()} or on first access, so opening many tables does not delay start of DAO.
+ */
 public class FileTable implements Table, Closeable {
+    static final long MAGIC = 0x4D5A53535441424CL;
+    static final int VERSION = 3;
+    static final int FOOTER_SIZE = Long.BYTES + Integer.BYTES + Long.BYTES
+            + Integer.BYTES + Integer.BYTES + Integer.BYTES + Long.BYTES;
+    // Version without key range
+    private static final int VERSION_2 = 2;
+    private static final int FOOTER_SIZE_2 = Long.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES + Long.BYTES;
+    static final String BLOOM_SUFFIX = ".bloom";
+    private static final Cleaner CLEANER = Cleaner.create();
+    // Offsets of mapping are ints
+    private static final long MAX_MAPPED_SIZE = Integer.MAX_VALUE;
+    private static final Logger logger = LoggerFactory.getLogger(FileTable.class);
+
+    private final File file;
+    private final long fileSize;
     private final int rows;
-    private final LongBuffer offsets;
     private final FileChannel fileChannel;
+    private final ByteBuffer mapped;
+    private final BlockCache blockCache;
+    private final long id;
+    private final Resources resources;
+    private final Cleaner.Cleanable cleanable;
+    // Sets of tables holding this one
+    private final AtomicInteger refs = new AtomicInteger();
+    // Bounds of keys, read on open unless the table is written by older version, then read on demand
+    private volatile ByteBuffer firstKey;
+    private volatile ByteBuffer lastKey;
+
+    private final boolean legacy;
+    // Block format
+    private final int blocks;
+    private final long indexOffset;
+    private final long indexEnd;
+    private volatile Index index;
+
+    /**
+     * What is read on load: offsets of cells for legacy format,
+     * offsets and separators of blocks for block format, and Bloom filter.
+     */
+    private static final class Index {
+        // Legacy format
+        private final LongBuffer offsets;
+
+        // Block format
+        private final long[] blockOffsets;
+        private final ByteBuffer separators;
+        private final int[] separatorOffsets;
+
+        private final BloomFilter bloomFilter;
+
+        Index(
+                final LongBuffer offsets,
+                final long[] blockOffsets,
+                final ByteBuffer separators,
+                final int[] separatorOffsets,
+                final BloomFilter bloomFilter) {
+            this.offsets = offsets;
+            this.blockOffsets = blockOffsets;
+            this.separators = separators;
+            this.separatorOffsets = separatorOffsets;
+            this.bloomFilter = bloomFilter;
+        }
+    }
 
     /**
      * Sorted String Table, which use FileChannel for read and write operations.
+     * In mmap mode the whole file is mapped once and keys and values are returned
+     * as slices of the mapping, so reads make neither syscalls nor copies.
+     * A buffer can`t map more than 2 GB, so larger tables are read from FileChannel even in mmap mode.
+     * Otherwise blocks read from FileChannel are kept in shared block cache if it is given.
+     * A mapping is never unmapped explicitly, as slices of it may still be held by readers,
+     * so it is released by GC once they are gone, along with disk space of a deleted table.
+     * Only the footer is read, see {@link #load()}.
      * @param file of this table
+     * @param mmap read the table through memory mapped buffer
+     * @param blockCache cache of blocks or null to read every block from disk
      * @throws IOException if FileChannel manipulations is failed
      */
-    FileTable(final File file) throws IOException {
-        this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
-        final long fileSize = file.length();
-        assert fileSize <= Integer.MAX_VALUE;
-
-        // Rows
-        long offset = fileChannel.size() - Long.BYTES;
-        final long rowsValue = readLong(fileChannel, offset);
-        assert rowsValue <= Integer.MAX_VALUE;
-        this.rows = (int) rowsValue;
-
-        // Offsets
-        offset -= (long) Long.BYTES * rows;
-        this.offsets = readBuffer(fileChannel, offset, Long.BYTES * rows).asLongBuffer();
-    }
-
-    static void write(final Iterator<Cell> cellsIterator, final File to) throws IOException {
-        try (FileChannel fc = FileChannel.open(
-                to.toPath(),
-                StandardOpenOption.CREATE_NEW,
-                StandardOpenOption.WRITE
-        )) {
-            final List<Long> listOffsets = new ArrayList<>();
-            long offset = 0;
-            while (cellsIterator.hasNext()) {
-                listOffsets.add(offset);
-
-                final Cell cell = cellsIterator.next();
-
-                // Key
-                final ByteBuffer key = cell.getKey();
-                final int keySize = cell.getKey().remaining();
-                fc.write(Bytes.fromInt(keySize));
-                offset += Integer.BYTES;
-                fc.write(key);
-                offset += keySize;
-
-                // Value
-                final Value value = cell.getValue();
-
-                // Timestamp
-                final long timeStamp = cell.getValue().getTimeStamp();
-                fc.write(Bytes.fromLong(value.isRemoved()
-                        ? -timeStamp
-                        : timeStamp));
-                offset += Long.BYTES;
-
-                // Value
-                if (!value.isRemoved()) {
-                    final ByteBuffer valueData = value.getData();
-                    final int valueSize = valueData.remaining();
-                    fc.write(Bytes.fromInt(valueSize));
-                    offset += Integer.BYTES;
-                    fc.write(valueData);
-                    offset += valueSize;
+    FileTable(
+            final File file,
+            final boolean mmap,
+            @Nullable final BlockCache blockCache) throws IOException {
+        this.file = file;
+        this.fileSize = file.length();
+        if (mmap && fileSize <= MAX_MAPPED_SIZE) {
+            try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                this.mapped = fc.map(MapMode.READ_ONLY, 0, fileSize);
+            }
+            this.fileChannel = null;
+            // Page cache already keeps mapped blocks in memory
+            this.blockCache = null;
+        } else {
+            this.mapped = null;
+            this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.blockCache = blockCache;
+        }
+        this.id = this.blockCache == null ? 0 : this.blockCache.nextTableId();
+
+        if (fileSize >= FOOTER_SIZE_2 && readLong(fileSize - Long.BYTES) == MAGIC) {
+            final int version = readInt(fileSize - Long.BYTES - Integer.BYTES);
+            if (version != VERSION && version != VERSION_2) {
+                throw new IOException("Unsupported SSTable version " + version + " of " + file);
+            }
+            final int footerSize = version == VERSION ? FOOTER_SIZE : FOOTER_SIZE_2;
+            final ByteBuffer footer = readBuffer(fileSize - footerSize, footerSize);
+            this.indexOffset = footer.getLong();
+            this.blocks = footer.getInt();
+            final long rowsValue = footer.getLong();
+            assert rowsValue <= Integer.MAX_VALUE;
+            this.rows = (int) rowsValue;
+            this.legacy = false;
+            if (version == VERSION) {
+                final int firstKeySize = footer.getInt();
+                final int lastKeySize = footer.getInt();
+                this.indexEnd = fileSize - footerSize - firstKeySize - lastKeySize;
+                if (rows > 0) {
+                    final ByteBuffer keys = readBuffer(indexEnd, firstKeySize + lastKeySize);
+                    this.firstKey = copy(keys.duplicate().limit(firstKeySize));
+                    this.lastKey = copy(keys.position(firstKeySize));
+                }
+            } else {
+                this.indexEnd = fileSize - footerSize;
+            }
+        } else {
+            final long rowsValue = readLong(fileSize - Long.BYTES);
+            assert rowsValue <= Integer.MAX_VALUE;
+            this.rows = (int) rowsValue;
+            this.legacy = true;
+            this.blocks = 0;
+            this.indexOffset = 0;
+            this.indexEnd = 0;
+        }
+
+        this.resources = new Resources(file, fileChannel, this.blockCache, id, blocks);
+        this.cleanable = CLEANER.register(this, resources);
+    }
+
+    /**
+     * What must be released when table is closed or unreachable.
+     * It does not reference the table, otherwise the table never becomes unreachable.
+     */
+    private static final class Resources implements Runnable {
+        private final File file;
+        private final FileChannel fileChannel;
+        private final BlockCache blockCache;
+        private final long id;
+        private final int blocks;
+        private volatile boolean obsolete;
+        @Nullable
+        private volatile Runnable released;
+
+        Resources(
+                final File file,
+                final FileChannel fileChannel,
+                final BlockCache blockCache,
+                final long id,
+                final int blocks) {
+            this.file = file;
+            this.fileChannel = fileChannel;
+            this.blockCache = blockCache;
+            this.id = id;
+            this.blocks = blocks;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (fileChannel != null) {
+                    fileChannel.close();
+                }
+                if (blockCache != null) {
+                    blockCache.invalidate(id, blocks);
+                }
+                if (obsolete) {
+                    Files.deleteIfExists(file.toPath());
+                    Files.deleteIfExists(bloomFileOf(file).toPath());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to release " + file, e);
+            } finally {
+                final Runnable callback = released;
+                if (callback != null) {
+                    callback.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Read index and Bloom filter of the table unless they are already read.
+     * @throws IOException if read is failed
+     */
+    void load() throws IOException {
+        index();
+    }
+
+    private Index index() throws IOException {
+        Index result = index;
+        if (result == null) {
+            synchronized (this) {
+                result = index;
+                if (result == null) {
+                    result = readIndex();
+                    index = result;
                 }
             }
-            // Offsets
-            for (final Long anOffset : listOffsets) {
-                fc.write(Bytes.fromLong(anOffset));
+        }
+        return result;
+    }
+
+    private Index readIndex() throws IOException {
+        // Tables written before filters were introduced have none
+        final BloomFilter bloomFilter = BloomFilter.read(bloomFileOf(file));
+        if (legacy) {
+            final long offset = fileSize - Long.BYTES - (long) Long.BYTES * rows;
+            final LongBuffer offsets = readBuffer(offset, Long.BYTES * rows).asLongBuffer();
+            return new Index(offsets, null, null, null, bloomFilter);
+        }
+        final ByteBuffer separators = readBuffer(indexOffset, (int) (indexEnd - indexOffset));
+        final long[] blockOffsets = new long[blocks + 1];
+        final int[] separatorOffsets = new int[blocks];
+        int position = 0;
+        for (int i = 0; i < blocks; i++) {
+            blockOffsets[i] = separators.getLong(position);
+            position += Long.BYTES;
+            final int separatorSize = separators.getInt(position);
+            position += Integer.BYTES;
+            separatorOffsets[i] = position;
+            position += separatorSize;
+        }
+        blockOffsets[blocks] = indexOffset;
+        return new Index(null, blockOffsets, separators, separatorOffsets, bloomFilter);
+    }
+
+    static File bloomFileOf(final File table) {
+        return new File(table.getPath() + BLOOM_SUFFIX);
+    }
+
+    /**
+     * Write cells to new SSTable along with Bloom filter of its keys.
+     * @param cellsIterator cells in ascending order
+     * @param expectedRows estimated number of cells used to size Bloom filter
+     * @param blockSize size of block in bytes
+     * @param to file of new table
+     * @throws IOException if write is failed
+     */
+    static void write(
+            final Iterator<Cell> cellsIterator,
+            final int expectedRows,
+            final int blockSize,
+            final File to) throws IOException {
+        try (FileTableWriter writer = new FileTableWriter(to, blockSize, expectedRows)) {
+            while (cellsIterator.hasNext()) {
+                writer.append(cellsIterator.next());
             }
+            writer.finish();
+        }
+    }
 
-            // Cells
-            fc.write(Bytes.fromLong(listOffsets.size()));
+    private static ByteBuffer separatorAt(
+            final Index index,
+            final int i) {
+        final int offset = index.separatorOffsets[i];
+        final int size = index.separators.getInt(offset - Integer.BYTES);
+        return index.separators.duplicate()
+                .position(offset)
+                .limit(offset + size)
+                .slice();
+    }
+
+    /**
+     * Binary search of the last block which separator is not greater than given key.
+     * The first key not less than given one is either in this block or the first key of the next block.
+     */
+    private int blockOf(final ByteBuffer key) throws IOException {
+        final Index index = index();
+        int left = 0;
+        int right = blocks - 1;
+        while (left < right) {
+            final int mid = left + ((right - left + 1) >> 1);
+            if (separatorAt(index, mid).compareTo(key) <= 0) {
+                left = mid;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return left;
+    }
+
+    private Block blockAt(final int i) throws IOException {
+        assert 0 <= i && i < blocks;
+        if (blockCache != null) {
+            return blockCache.get(id, i, this::readBlock);
         }
+        return readBlock(i);
+    }
+
+    private Block readBlock(final int i) throws IOException {
+        final long[] blockOffsets = index().blockOffsets;
+        final long offset = blockOffsets[i];
+        return new Block(readBuffer(offset, (int) (blockOffsets[i + 1] - offset)));
     }
 
     private ByteBuffer keyAt(final int i) throws IOException {
         assert 0 <= i && i < rows;
-        assert fileChannel != null;
-        final long offset = offsets.get(i);
-        assert offset <= Integer.MAX_VALUE;
+        final long offset = index().offsets.get(i);
 
-        final int keySize = readInt(fileChannel, (int) offset);
+        final int keySize = readInt(offset);
 
-        return readBuffer(fileChannel, offset + Integer.BYTES, keySize);
+        return readBuffer(offset + Integer.BYTES, keySize);
     }
 
     private Cell cellAt(final int i) throws IOException {
         assert 0 <= i && i < rows;
-        assert fileChannel != null;
-        long offset = offsets.get(i);
-        assert offset <= Integer.MAX_VALUE;
+        long offset = index().offsets.get(i);
 
         // Key
-        final int keySize = readInt(fileChannel, (int) offset);
+        final int keySize = readInt(offset);
         offset += Integer.BYTES;
-        final ByteBuffer key = readBuffer(fileChannel, offset, keySize);
+        final ByteBuffer key = readBuffer(offset, keySize);
         offset += keySize;
 
         // Timestamp
-        final long timeStamp = readLong(fileChannel, (int) offset);
+        final long timeStamp = readLong(offset);
         offset += Long.BYTES;
 
         if (timeStamp < 0) {
             return new Cell(key.slice(), new Value(-timeStamp, null));
         } else {
-            final int valueSize = readInt(fileChannel, (int) offset);
+            final int valueSize = readInt(offset);
             offset += Integer.BYTES;
-            final ByteBuffer value = readBuffer(fileChannel, offset, valueSize);
+            final ByteBuffer value = readBuffer(offset, valueSize);
             return new Cell(key, new Value(timeStamp, value));
         }
     }
@@ -145,27 +391,46 @@ public class FileTable implements Table, Closeable {
         return left;
     }
 
-    private static long readLong(final FileChannel fc, final long offset) throws IOException {
+    private long readLong(final long offset) throws IOException {
+        if (mapped != null) {
+            return mapped.getLong((int) offset);
+        }
         final ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
-        fc.read(buffer, offset);
+        fileChannel.read(buffer, offset);
         return buffer.rewind().getLong();
     }
 
-    private static int readInt(final FileChannel fc, final long offset) throws IOException {
+    private int readInt(final long offset) throws IOException {
+        if (mapped != null) {
+            return mapped.getInt((int) offset);
+        }
         final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
-        fc.read(buffer, offset);
+        fileChannel.read(buffer, offset);
         return buffer.rewind().getInt();
     }
 
-    private static ByteBuffer readBuffer(final FileChannel fc, final long offset, final int size) throws IOException {
+    private ByteBuffer readBuffer(final long offset, final int size) throws IOException {
+        if (mapped != null) {
+            return mapped.duplicate()
+                    .position((int) offset)
+                    .limit((int) offset + size)
+                    .slice();
+        }
         final ByteBuffer buffer = ByteBuffer.allocate(size);
-        fc.read(buffer, offset);
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of SSTable at " + (offset + buffer.position()));
+            }
+        }
         return buffer.rewind();
     }
 
     @NotNull
     @Override
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
+        if (!legacy) {
+            return blocksIterator(from);
+        }
         return new Iterator<>() {
             int next = position(from);
 
@@ -189,15 +454,168 @@ public class FileTable implements Table, Closeable {
         };
     }
 
+    private Iterator<Cell> blocksIterator(@NotNull final ByteBuffer from) throws IOException {
+        final int first = blocks == 0 ? 0 : blockOf(from);
+        final Block firstBlock = blocks == 0 ? null : blockAt(first);
+        return new Iterator<>() {
+            int blockIndex = first;
+            Block block = firstBlock;
+            int next = block == null ? 0 : block.position(from);
+
+            @Override
+            public boolean hasNext() {
+                while (block != null && next == block.size()) {
+                    blockIndex++;
+                    next = 0;
+                    try {
+                        block = blockIndex < blocks ? blockAt(blockIndex) : null;
+                    } catch (IOException e) {
+                        throw new CellReadRuntimeException("Unable to read block " + blockIndex, e);
+                    }
+                }
+                return block != null;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("FileTable iterator has not next element");
+                }
+                return block.cellAt(next++);
+            }
+        };
+    }
+
+    int rows() {
+        return rows;
+    }
+
+    /**
+     * The least key of the table, which must not be empty.
+     * @return copy of the key
+     * @throws IOException if read is failed
+     */
+    @NotNull
+    ByteBuffer firstKey() throws IOException {
+        if (firstKey == null) {
+            assert rows > 0;
+            firstKey = copy(legacy ? keyAt(0) : blockAt(0).keyAt(0));
+        }
+        return firstKey.duplicate();
+    }
+
+    /**
+     * The greatest key of the table, which must not be empty.
+     * @return copy of the key
+     * @throws IOException if read is failed
+     */
+    @NotNull
+    ByteBuffer lastKey() throws IOException {
+        if (lastKey == null) {
+            assert rows > 0;
+            if (legacy) {
+                lastKey = copy(keyAt(rows - 1));
+            } else {
+                final Block block = blockAt(blocks - 1);
+                lastKey = copy(block.keyAt(block.size() - 1));
+            }
+        }
+        return lastKey.duplicate();
+    }
+
+    private static ByteBuffer copy(final ByteBuffer key) {
+        return ByteBuffer.allocate(key.remaining()).put(key.duplicate()).flip();
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) throws IOException {
+        final BloomFilter bloomFilter = index().bloomFilter;
+        if (bloomFilter != null && !bloomFilter.mightContain(key)) {
+            return null;
+        }
+        if (!legacy) {
+            if (blocks == 0) {
+                return null;
+            }
+            final Block block = blockAt(blockOf(key));
+            final int i = block.position(key);
+            if (i < block.size() && key.equals(block.keyAt(i))) {
+                return block.cellAt(i);
+            }
+            return null;
+        }
+        final int i = position(key);
+        if (i < rows && key.equals(keyAt(i))) {
+            return cellAt(i);
+        }
+        return null;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Size of the table on disk.
+     * @return size of table file in bytes
+     */
     @Override
     public long sizeInBytes() {
-        throw new UnsupportedOperationException("This method not for FileTable");
+        return fileSize;
+    }
+
+    /**
+     * Mark table which is not live anymore, so its files are deleted once it is closed.
+     */
+    void obsolete() {
+        resources.obsolete = true;
+    }
+
+    /**
+     * Mark table replaced by compaction. Its files are deleted as soon as the last set
+     * of tables holding it is released, so views taken before compaction can still read it.
+     * @param released called once the table is closed, either by the returned action or on release
+     * @return action which closes table and deletes its files right away,
+     *     it must be run when no views are left, e.g. on DAO close
+     */
+    @NotNull
+    Runnable obsolete(@NotNull final Runnable released) {
+        resources.released = released;
+        obsolete();
+        return cleanable::clean;
+    }
+
+    /**
+     * Take a reference to the table for a set holding it.
+     */
+    void retain() {
+        refs.incrementAndGet();
+    }
+
+    /**
+     * Drop a reference of a set, the last one closes the table.
+     * Files of obsolete table which can`t be deleted now are deleted on next start,
+     * as they are not recorded in manifest, so a reader releasing the table does not fail.
+     */
+    void release() {
+        final int count = refs.decrementAndGet();
+        assert count >= 0;
+        if (count == 0) {
+            try {
+                cleanable.clean();
+            } catch (UncheckedIOException e) {
+                logger.warn("Can`t close table {}", file, e.getCause());
+            }
+        }
     }
 
     @Override
     public void close() throws IOException {
-        if (fileChannel != null) {
-            fileChannel.close();
+        try {
+            cleanable.clean();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
     }
 }
@@ -0,0 +1,264 @@
+package ru.mail.polis.dao.murzin;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writer of SSTable in block format, see {@link FileTable} for the layout.
+ * Cells are grouped into blocks of about {@code blockSize} bytes and only a separator key
+ * per block is kept in the index, so index size depends on the number of blocks, not rows.
+ * The table is written to temporary file which is renamed when it is complete and forced to disk,
+ * so a table is either absent or whole after crash.
+ */
+final class FileTableWriter implements Closeable {
+    static final String TEMP = ".tmp";
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int OUTPUT_SIZE = 1024 * 1024;
+    private static final int POOLED_OUTPUTS = 4;
+    // Buffers of closed writers, so flushes and compactions do not allocate direct memory every time.
+    // A writer owns its buffer until it is closed, so writers never share one
+    private static final BlockingQueue<ByteBuffer> OUTPUTS = new ArrayBlockingQueue<>(POOLED_OUTPUTS);
+
+    private final FileChannel fc;
+    private final File to;
+    private final File temp;
+    private final int blockSize;
+    private final BloomFilter bloomFilter;
+
+    // Blocks are gathered here, so the file is written in large chunks
+    private final ByteBuffer output;
+    // Sparse index: offset, separator size and separator of every block
+    private ByteBuffer index = ByteBuffer.allocate(4 * 1024);
+    private int blocks;
+    private ByteBuffer block;
+    private int[] cellOffsets = new int[64];
+    private int cells;
+    private ByteBuffer firstKey;
+    private ByteBuffer lastKey;
+    private long offset;
+    private long rows;
+
+    /**
+     * Create writer of new table.
+     * @param to file of new table
+     * @param blockSize size of block in bytes
+     * @param expectedRows estimated number of cells used to size Bloom filter
+     * @throws IOException if file can`t be created
+     */
+    FileTableWriter(
+            @NotNull final File to,
+            final int blockSize,
+            final int expectedRows) throws IOException {
+        this.to = to;
+        this.temp = new File(to.getPath() + TEMP);
+        this.fc = FileChannel.open(
+                temp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        this.blockSize = blockSize;
+        this.bloomFilter = BloomFilter.create(expectedRows);
+        this.block = ByteBuffer.allocate(blockSize);
+        final ByteBuffer pooled = OUTPUTS.poll();
+        this.output = pooled == null ? ByteBuffer.allocateDirect(OUTPUT_SIZE) : pooled.clear();
+    }
+
+    /**
+     * Append cell, cells must be appended in ascending key order.
+     * @param cell cell to append
+     * @throws IOException if write is failed
+     */
+    void append(@NotNull final Cell cell) throws IOException {
+        final ByteBuffer key = cell.getKey();
+        final Value value = cell.getValue();
+        final int cellSize = Integer.BYTES + key.remaining() + Long.BYTES
+                + (value.isRemoved() ? 0 : Integer.BYTES + value.getData().remaining());
+        if (cells > 0 && block.position() + cellSize + Integer.BYTES * (cells + 2) > blockSize) {
+            writeBlock();
+        }
+        if (cells == 0) {
+            addToIndex(lastKey == null ? EMPTY : separator(lastKey, key));
+        }
+        ensureCapacity(cellSize + Integer.BYTES * (cells + 2));
+        if (cells == cellOffsets.length) {
+            cellOffsets = Arrays.copyOf(cellOffsets, cells * 2);
+        }
+        cellOffsets[cells++] = block.position();
+
+        block.putInt(key.remaining());
+        block.put(key.duplicate());
+        if (value.isRemoved()) {
+            block.putLong(-value.getTimeStamp());
+        } else {
+            final ByteBuffer data = value.getData();
+            block.putLong(value.getTimeStamp());
+            block.putInt(data.remaining());
+            block.put(data.duplicate());
+        }
+
+        bloomFilter.put(key);
+        if (firstKey == null) {
+            firstKey = ByteBuffer.allocate(key.remaining()).put(key.duplicate()).flip();
+        }
+        lastKey = key;
+        rows++;
+    }
+
+    /**
+     * Shortest key which is greater than previous key and not greater than next one.
+     * It is a slice of the next key, as it is copied into the index right away.
+     */
+    private static ByteBuffer separator(final ByteBuffer previous, final ByteBuffer next) {
+        final int length = Math.min(previous.remaining(), next.remaining());
+        int common = 0;
+        while (common < length
+                && previous.get(previous.position() + common) == next.get(next.position() + common)) {
+            common++;
+        }
+        assert common < next.remaining() : "Keys must be ascending";
+        return next.duplicate().limit(next.position() + common + 1);
+    }
+
+    private void addToIndex(final ByteBuffer separator) {
+        final int size = Long.BYTES + Integer.BYTES + separator.remaining();
+        if (index.remaining() < size) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(index.capacity() * 2, index.position() + size));
+            index.flip();
+            grown.put(index);
+            index = grown;
+        }
+        index.putLong(offset);
+        index.putInt(separator.remaining());
+        index.put(separator);
+        blocks++;
+    }
+
+    private void ensureCapacity(final int size) {
+        if (block.remaining() < size) {
+            final ByteBuffer grown = ByteBuffer.allocate(block.position() + size);
+            block.flip();
+            grown.put(block);
+            block = grown;
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        for (int i = 0; i < cells; i++) {
+            block.putInt(cellOffsets[i]);
+        }
+        block.putInt(cells);
+        block.flip();
+        offset += block.remaining();
+        write(block);
+        if (block.capacity() > blockSize) {
+            block = ByteBuffer.allocate(blockSize);
+        } else {
+            block.clear();
+        }
+        cells = 0;
+    }
+
+    private void write(final ByteBuffer buffer) throws IOException {
+        if (output.remaining() < buffer.remaining()) {
+            if (buffer.remaining() >= output.capacity()) {
+                // Huge block is not copied, both buffers are written at once
+                final ByteBuffer[] buffers = {output.flip(), buffer};
+                while (buffer.hasRemaining()) {
+                    fc.write(buffers);
+                }
+                output.clear();
+                return;
+            }
+            flushOutput();
+        }
+        output.put(buffer);
+    }
+
+    private void flushOutput() throws IOException {
+        output.flip();
+        while (output.hasRemaining()) {
+            fc.write(output);
+        }
+        output.clear();
+    }
+
+    /**
+     * Write the rest of cells, index, key range, footer and Bloom filter and make the table visible.
+     * @throws IOException if write is failed
+     */
+    void finish() throws IOException {
+        if (cells > 0) {
+            writeBlock();
+        }
+        final long indexOffset = offset;
+        write(index.flip());
+        // Key range is read on open, so key ranges of tables are known without their indexes
+        final ByteBuffer first = firstKey == null ? EMPTY : firstKey.duplicate();
+        final ByteBuffer last = lastKey == null ? EMPTY : lastKey.duplicate();
+        final int firstKeySize = first.remaining();
+        final int lastKeySize = last.remaining();
+        write(first);
+        write(last);
+        final ByteBuffer footer = ByteBuffer.allocate(FileTable.FOOTER_SIZE);
+        footer.putLong(indexOffset);
+        footer.putInt(blocks);
+        footer.putLong(rows);
+        footer.putInt(firstKeySize);
+        footer.putInt(lastKeySize);
+        footer.putInt(FileTable.VERSION);
+        footer.putLong(FileTable.MAGIC);
+        write(footer.flip());
+        flushOutput();
+        fc.force(true);
+        bloomFilter.write(FileTable.bloomFileOf(to));
+        Files.move(temp.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(to);
+    }
+
+    /**
+     * Force directory of the file to disk, so its rename survives power loss.
+     * @param file file renamed into place
+     * @throws IOException if force is failed
+     */
+    static void forceDirectory(final File file) throws IOException {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        try (FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        }
+    }
+
+    /**
+     * Number of output buffers of closed writers ready for reuse.
+     * @return size of the pool
+     */
+    static int pooledOutputs() {
+        return OUTPUTS.size();
+    }
+
+    /**
+     * Close the file, delete it unless it is finished and give the buffer back to the pool.
+     * The writer is not used after that.
+     * @throws IOException if the file can`t be closed or deleted
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            fc.close();
+            Files.deleteIfExists(temp.toPath());
+        } finally {
+            // The pool is full if more writers ran at once, then the buffer is left to GC
+            OUTPUTS.offer(output);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ru.mail.polis.dao.murzin;
+
+import com.google.common.collect.Iterators;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Memtable of heap buffers and values in a concurrent skip list.
+ */
+@ThreadSafe
+public class HeapMemTable implements MemTable {
+    // Estimated heap footprint of an entry besides its bytes, assuming compressed references:
+    // skip list node with its share of index nodes, then key buffer and header of its array
+    private static final int ENTRY_OVERHEAD = 32 + 48 + 16;
+    // Value object, then value buffer and header of its array unless it is a tombstone
+    private static final int VALUE_OVERHEAD = 24;
+    private static final int DATA_OVERHEAD = 48 + 16;
+
+    private final SortedMap<ByteBuffer, Value> map = new ConcurrentSkipListMap<>();
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final AtomicLong payloadSize = new AtomicLong();
+    private final AtomicInteger rows = new AtomicInteger();
+
+    @Override
+    public long sizeInBytes() {
+        return sizeInBytes.get();
+    }
+
+    @Override
+    public long payloadSize() {
+        return payloadSize.get();
+    }
+
+    @Override
+    public int rows() {
+        return rows.get();
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return Iterators.transform(
+                map.tailMap(from).entrySet().iterator(),
+                e -> new Cell(e.getKey(), e.getValue()));
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) {
+        final Value value = map.get(key);
+        return value == null ? null : new Cell(key, value);
+    }
+
+    @Override
+    public void put(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        final Value previous = map.put(key, value);
+        if (previous == null) {
+            rows.incrementAndGet();
+            payloadSize.addAndGet(key.remaining() + sizeOf(value));
+            sizeInBytes.addAndGet(ENTRY_OVERHEAD + key.remaining() + retainedSizeOf(value));
+        } else {
+            payloadSize.addAndGet(sizeOf(value) - sizeOf(previous));
+            sizeInBytes.addAndGet(retainedSizeOf(value) - retainedSizeOf(previous));
+        }
+    }
+
+    private static int sizeOf(final Value value) {
+        return value.isRemoved() ? 0 : value.getData().remaining();
+    }
+
+    private static int retainedSizeOf(final Value value) {
+        return VALUE_OVERHEAD + (value.isRemoved() ? 0 : DATA_OVERHEAD + value.getData().remaining());
+    }
+}
@@ -0,0 +1,54 @@
+package ru.mail.polis.dao.murzin;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hybrid logical clock giving timestamps of updates. A timestamp is wall clock time in milliseconds
+ * multiplied by {@link #LOGICAL_RANGE} plus a logical counter, which orders timestamps taken
+ * within the same millisecond. Timestamps never go back, even if the wall clock does,
+ * and are greater than every timestamp passed to {@link #update(long)}, so the clock follows
+ * timestamps seen from other nodes or from previous runs, and updates are ordered across them
+ * as long as wall clocks of nodes are roughly in sync.
+ *
+ * <p>The clock is a single {@link AtomicLong} advanced by compare-and-set without locks.
+ */
+public final class HybridClock {
+    /**
+     * Number of logical ticks per millisecond. When the counter overflows, the clock runs ahead
+     * of wall clock until it catches up.
+     */
+    public static final long LOGICAL_RANGE = 1_000_000L;
+
+    private static final AtomicLong last = new AtomicLong();
+
+    private HybridClock() {
+        // Not supposed to be instantiated
+    }
+
+    /**
+     * Take timestamp for a local update.
+     * @return timestamp greater than every one taken or seen before
+     */
+    public static long now() {
+        return last.accumulateAndGet(physical(), HybridClock::next);
+    }
+
+    /**
+     * Take timestamp after one received from another node or read from disk.
+     * @param seen timestamp of remote or persisted update
+     * @return timestamp greater than the seen one and every one taken before
+     */
+    public static long update(final long seen) {
+        return last.accumulateAndGet(Math.max(physical(), seen + 1), HybridClock::next);
+    }
+
+    private static long next(
+            final long previous,
+            final long candidate) {
+        return Math.max(previous + 1, candidate);
+    }
+
+    private static long physical() {
+        return System.currentTimeMillis() * LOGICAL_RANGE;
+    }
+}
@@ -0,0 +1,146 @@
+package ru.mail.polis.dao.murzin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Leveled compaction in the style of LevelDB. Level 0 holds flushed tables,
+ * which are merged all at once with overlapping tables of level 1 when there are enough of them.
+ * Every deeper level holds tables with disjoint key ranges and is {@link #LEVEL_RATIO} times larger
+ * than the previous one. When a level exceeds its capacity, one of its tables is merged
+ * with overlapping tables of the next level. Tables of a level are chosen in turns
+ * along the key space, so the whole level is rewritten evenly.
+ *
+ * <p>A point lookup probes every table of level 0 and at most one table per deeper level,
+ * and most of the data are rewritten about {@link #LEVEL_RATIO} times per level,
+ * so reads are cheaper than with size-tiered compaction at the cost of more writes.
+ */
+final class LeveledCompaction implements CompactionStrategy {
+    static final int LEVEL_RATIO = 10;
+
+    private final int level0Tables;
+    private final long levelBaseSize;
+    // The last key of the table merged from the level last time, used by compactor thread only
+    private final Map<Integer, ByteBuffer> compactPointers = new HashMap<>();
+
+    /**
+     * Create compaction policy.
+     * @param level0Tables number of tables of level 0 which triggers their merge
+     * @param levelBaseSize capacity of level 1 in bytes
+     */
+    LeveledCompaction(
+            final int level0Tables,
+            final long levelBaseSize) {
+        assert level0Tables > 0;
+        assert levelBaseSize > 0;
+        this.level0Tables = level0Tables;
+        this.levelBaseSize = levelBaseSize;
+    }
+
+    /**
+     * Size of tables written to deeper levels.
+     * @return size in bytes
+     */
+    long tableSize() {
+        return levelBaseSize / LEVEL_RATIO;
+    }
+
+    private long capacity(final int level) {
+        long capacity = levelBaseSize;
+        for (int i = 1; i < level; i++) {
+            capacity *= LEVEL_RATIO;
+        }
+        return capacity;
+    }
+
+    /**
+     * Choose the level which exceeds its capacity the most.
+     */
+    @Nullable
+    @Override
+    public Compaction select(@NotNull final TableSet tables) throws IOException {
+        int chosen = -1;
+        double maxScore = 1.0;
+        final double score0 = (double) tables.level0().size() / level0Tables;
+        if (score0 >= maxScore) {
+            chosen = 0;
+            maxScore = score0;
+        }
+        for (int level = 1; level < tables.depth(); level++) {
+            long size = 0;
+            for (final FileTable table : tables.level(level).values()) {
+                size += table.sizeInBytes();
+            }
+            final double score = (double) size / capacity(level);
+            if (score > maxScore) {
+                chosen = level;
+                maxScore = score;
+            }
+        }
+        if (chosen < 0) {
+            return null;
+        }
+        final Map<Integer, FileTable> inputs = chosen == 0
+                ? new HashMap<>(tables.level0())
+                : chooseTable(tables, chosen);
+        ByteBuffer from = null;
+        ByteBuffer to = null;
+        for (final FileTable table : inputs.values()) {
+            if (table.rows() > 0) {
+                from = min(from, table.firstKey());
+                to = max(to, table.lastKey());
+            }
+        }
+        final int output = chosen + 1;
+        if (from == null) {
+            // Nothing but empty tables
+            return new Compaction(inputs, output, true, tableSize());
+        }
+        inputs.putAll(tables.overlapping(output, from, to));
+
+        // Values shadowed by tombstones can be only in deeper levels
+        boolean dropTombstones = true;
+        for (int level = output + 1; level < tables.depth() && dropTombstones; level++) {
+            dropTombstones = tables.overlapping(level, from, to).isEmpty();
+        }
+        return new Compaction(inputs, output, dropTombstones, tableSize());
+    }
+
+    private Map<Integer, FileTable> chooseTable(
+            final TableSet tables,
+            final int level) throws IOException {
+        final ByteBuffer pointer = compactPointers.get(level);
+        Map.Entry<Integer, FileTable> chosen = null;
+        for (final Map.Entry<Integer, FileTable> entry : tables.level(level).entrySet()) {
+            if (chosen == null) {
+                chosen = entry;
+            }
+            if (pointer != null && entry.getValue().firstKey().compareTo(pointer) > 0) {
+                chosen = entry;
+                break;
+            }
+        }
+        assert chosen != null;
+        compactPointers.put(level, chosen.getValue().lastKey());
+        final Map<Integer, FileTable> inputs = new HashMap<>();
+        inputs.put(chosen.getKey(), chosen.getValue());
+        return inputs;
+    }
+
+    private static ByteBuffer min(
+            @Nullable final ByteBuffer current,
+            @NotNull final ByteBuffer key) {
+        return current == null || key.compareTo(current) < 0 ? key : current;
+    }
+
+    private static ByteBuffer max(
+            @Nullable final ByteBuffer current,
+            @NotNull final ByteBuffer key) {
+        return current == null || key.compareTo(current) > 0 ? key : current;
+    }
+}
@@ -0,0 +1,208 @@
+package ru.mail.polis.dao.murzin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record of live SSTables with their levels and of the max generation.
+ * Every change of the table set is appended and forced to disk before it is visible,
+ * so on start only recorded tables are opened, and files of tables which were being
+ * written or replaced on crash are ignored.
+ *
+ * <p>A record is payload size ({@code int}), CRC32 of payload ({@code int}) and payload:
+ * max generation ({@code int}), number of removed tables ({@code int}) and their names,
+ * number of added tables ({@code int}) and their names with levels ({@code int}).
+ * A name is its size in bytes ({@code int}) and UTF-8 bytes. Reading stops at the first
+ * torn or corrupted record, which can only be the last one being appended on crash.
+ * On open the manifest is replaced with a single record of the whole state.
+ */
+final class Manifest implements Closeable {
+    static final String NAME = "Manifest";
+    private static final String TEMP = ".tmp";
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private int maxGeneration;
+
+    /**
+     * Recorded state of the table set.
+     */
+    static final class State {
+        private final Map<String, Integer> tables;
+        private final int maxGeneration;
+
+        /**
+         * Create state.
+         * @param tables levels of live tables by file name
+         * @param maxGeneration the greatest generation ever used
+         */
+        State(
+                @NotNull final Map<String, Integer> tables,
+                final int maxGeneration) {
+            this.tables = tables;
+            this.maxGeneration = maxGeneration;
+        }
+
+        @NotNull
+        Map<String, Integer> getTables() {
+            return tables;
+        }
+
+        int getMaxGeneration() {
+            return maxGeneration;
+        }
+    }
+
+    /**
+     * Replace manifest in directory with the given state and open it for appending.
+     * @param base directory of DAO
+     * @param state current state of the table set
+     * @throws IOException if manifest can`t be written
+     */
+    Manifest(
+            @NotNull final File base,
+            @NotNull final State state) throws IOException {
+        final File file = new File(base, NAME);
+        this.maxGeneration = state.getMaxGeneration();
+        final File temp = new File(base, NAME + TEMP);
+        try (FileChannel fc = FileChannel.open(
+                temp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            write(fc, Collections.emptySet(), state.getTables());
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Read state recorded in directory.
+     * @param base directory of DAO
+     * @return recorded state or null if directory has no manifest
+     * @throws IOException if manifest can`t be read
+     */
+    @Nullable
+    static State read(@NotNull final File base) throws IOException {
+        final File file = new File(base, NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        final ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        final Map<String, Integer> tables = new HashMap<>();
+        int maxGeneration = 0;
+        final CRC32 crc = new CRC32();
+        while (data.remaining() >= HEADER_SIZE) {
+            final int size = data.getInt();
+            final int checksum = data.getInt();
+            if (size < 0 || size > data.remaining()) {
+                break;
+            }
+            final ByteBuffer payload = data.slice().limit(size);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            data.position(data.position() + size);
+
+            maxGeneration = Math.max(maxGeneration, payload.getInt());
+            final int removed = payload.getInt();
+            for (int i = 0; i < removed; i++) {
+                tables.remove(readName(payload));
+            }
+            final int added = payload.getInt();
+            for (int i = 0; i < added; i++) {
+                final String name = readName(payload);
+                tables.put(name, payload.getInt());
+            }
+        }
+        return new State(tables, maxGeneration);
+    }
+
+    private static String readName(final ByteBuffer payload) {
+        final int size = payload.getInt();
+        final ByteBuffer name = payload.slice().limit(size);
+        payload.position(payload.position() + size);
+        return StandardCharsets.UTF_8.decode(name).toString();
+    }
+
+    /**
+     * Append change of the table set and force it to disk.
+     * @param removed names of removed tables
+     * @param added levels of added tables by name
+     * @param generation the greatest generation of added tables
+     * @throws IOException if change can`t be written
+     */
+    synchronized void commit(
+            @NotNull final Collection<String> removed,
+            @NotNull final Map<String, Integer> added,
+            final int generation) throws IOException {
+        maxGeneration = Math.max(maxGeneration, generation);
+        write(channel, removed, added);
+    }
+
+    private void write(
+            final FileChannel fc,
+            final Collection<String> removed,
+            final Map<String, Integer> added) throws IOException {
+        int size = HEADER_SIZE + Integer.BYTES * 3;
+        for (final String name : removed) {
+            size += Integer.BYTES + name.length() * 3;
+        }
+        for (final String name : added.keySet()) {
+            size += Integer.BYTES * 2 + name.length() * 3;
+        }
+        final ByteBuffer record = ByteBuffer.allocate(size);
+        record.position(HEADER_SIZE);
+        record.putInt(maxGeneration);
+        record.putInt(removed.size());
+        for (final String name : removed) {
+            putName(record, name);
+        }
+        record.putInt(added.size());
+        for (final Map.Entry<String, Integer> entry : added.entrySet()) {
+            putName(record, entry.getKey());
+            record.putInt(entry.getValue());
+        }
+        record.flip();
+        final ByteBuffer payload = record.duplicate().position(HEADER_SIZE);
+        crc.reset();
+        crc.update(payload);
+        record.putInt(0, record.limit() - HEADER_SIZE);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        while (record.hasRemaining()) {
+            fc.write(record);
+        }
+        fc.force(true);
+    }
+
+    private static void putName(
+            final ByteBuffer record,
+            final String name) {
+        final ByteBuffer bytes = StandardCharsets.UTF_8.encode(name);
+        record.putInt(bytes.remaining());
+        record.put(bytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,52 +1,37 @@
 package ru.mail.polis.dao.murzin;
 
-import com.google.common.collect.Iterators;
-
 import org.jetbrains.annotations.NotNull;
 
 import java.nio.ByteBuffer;
-import java.util.Iterator;
-import java.util.SortedMap;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.atomic.AtomicLong;
-
-import javax.annotation.concurrent.ThreadSafe;
-
-@ThreadSafe
-public class MemTable implements Table {
-    private final SortedMap<ByteBuffer, Value> map = new ConcurrentSkipListMap<>();
-    private final AtomicLong sizeInBytes = new AtomicLong();
 
+/**
+ * Mutable in-memory table of the newest updates, which is flushed to SSTable once it is large enough.
+ * Implementations are safe for concurrent puts and reads.
+ */
+public interface MemTable extends Table {
+    /**
+     * Put value or tombstone with its own timestamp, so replayed updates keep their original time.
+     * @param key key of update
+     * @param value value or tombstone
+     */
+    void put(@NotNull ByteBuffer key, @NotNull Value value);
+
+    /**
+     * Estimated memory retained by the table, which is compared with flush threshold.
+     * @return size in bytes of keys and values along with structures holding them
+     */
     @Override
-    public long sizeInBytes() {
-        return sizeInBytes.get();
-    }
-
-    @NotNull
-    @Override
-    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
-        return Iterators.transform(
-                map.tailMap(from).entrySet().iterator(),
-                e -> new Cell(e.getKey(), e.getValue()));
-    }
-
-    void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Value previous = map.put(key, Value.of(value));
-        if (previous == null) {
-            sizeInBytes.addAndGet(key.remaining() + value.remaining());
-        } else if (previous.isRemoved()) {
-            sizeInBytes.addAndGet(value.remaining());
-        } else {
-            sizeInBytes.addAndGet(value.remaining() - previous.getData().remaining());
-        }
-    }
-
-    void remove(@NotNull final ByteBuffer key) {
-        final Value previous = map.put(key, Value.tombstone());
-        if (previous == null) {
-            sizeInBytes.addAndGet(key.remaining());
-        } else if (!previous.isRemoved()) {
-            sizeInBytes.addAndGet(-previous.getData().remaining());
-        }
-    }
-}
\ No newline at end of file
+    long sizeInBytes();
+
+    /**
+     * Size of keys and values alone, values replaced by later updates are not counted.
+     * @return size in bytes
+     */
+    long payloadSize();
+
+    /**
+     * Number of distinct keys.
+     * @return number of rows
+     */
+    int rows();
+}
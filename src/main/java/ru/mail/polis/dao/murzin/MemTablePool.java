@@ -2,159 +2,647 @@ package ru.mail.polis.dao.murzin;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 import org.jetbrains.annotations.NotNull;
-
-import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.Nullable;
 
 import ru.mail.polis.dao.Iters;
+import ru.mail.polis.dao.WriteBatch;
+import ru.mail.polis.dao.WriteRejectedException;
 
+/**
+ * Current memtable, which takes updates, and memtables pending flush.
+ *
+ * <p>Writers take no lock: a writer registers in the current memtable, appends to its commit log
+ * segment and puts to it. When the memtable is full, a new one is published, so further writers
+ * go there, and the full one is closed for writers and waits for registered ones to leave
+ * before it is flushed. Registration is counted in per-thread stripes of the memtable,
+ * so writers on different cores do not share a counter. Readers take an immutable list
+ * of the current memtable and memtables pending flush, which is replaced before a new memtable
+ * takes writes and after a flushed one is published among SSTables, so no update is missed.
+ *
+ * <p>Full memtables wait for flushers in a bounded queue. Several flushers write SSTables
+ * in parallel, but publish them in generation order, see {@link #awaitTurn(int)}.
+ * When the queue is full, writes are blocked, delayed or rejected by {@link DAOConfig.WriteStall} policy,
+ * and memtable is not replaced, so replacement never blocks.
+ *
+ * <p>A snapshot freezes the current memtable: it is replaced, but not queued for flush.
+ * Frozen memtables share the commit log segment of the current one and are flushed
+ * along with it into a single SSTable, so snapshots neither produce small SSTables
+ * nor wait for the flush queue. They are read until then, and their size counts toward flush threshold.
+ */
 public class MemTablePool implements Table, Closeable {
-    public static final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private volatile MemTable current;
-    private final NavigableMap<Integer, Table> pendingFlush;
+    private volatile Active current;
+    // Memtables replaced by snapshots and not queued for flush yet, the newest first, guarded by this
+    private final Deque<MemTable> frozen = new ArrayDeque<>();
+    private volatile long frozenBytes;
+    // Memtables flushed into a table of the generation, the newest first
+    private final NavigableMap<Integer, List<MemTable>> pendingFlush = new ConcurrentSkipListMap<>();
+    // Current, frozen and pending flush memtables, the newest first, replaced under lock of the pool
+    private volatile List<MemTable> readable;
+    private final Map<Integer, Integer> pendingLogs = new ConcurrentHashMap<>();
+    // Generations queued for flush and not published yet, guarded by flushOrder
+    private final NavigableSet<Integer> unpublished = new TreeSet<>();
+    // The oldest generation which flush is given up on close, guarded by flushOrder
+    private int abandoned = Integer.MAX_VALUE;
+    private final Object flushOrder = new Object();
     private final BlockingQueue<TableToFlush> flushQueue;
+    private final int flushers;
+    // Guarded by this, as well as replacement of current memtable
     private int generation;
     private final long memFlushThreshold;
     private final AtomicBoolean stop = new AtomicBoolean();
+    private final CommitLog commitLog;
+    private final Supplier<MemTable> memTables;
+    private final DAOConfig.WriteStall writeStall;
+    private final long writeDelayMillis;
+    // Notified when flush queue gets room
+    private final Object queueMonitor = new Object();
+    private final LongAdder stalls = new LongAdder();
+    private final LongAdder stallNanos = new LongAdder();
+    private final LongAdder slowdowns = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * Memtable taking updates along with its commit log segment and its writers.
+     */
+    private static final class Active {
+        private final MemTable table;
+        private final int log;
+        private final Writers writers = new Writers();
+
+        Active(
+                final MemTable table,
+                final int log) {
+            this.table = table;
+            this.log = log;
+        }
+    }
+
+    /**
+     * Number of writers which are inside of memtable, counted by stripes of threads.
+     * A stripe is padded to its own cache line. Once closed, no writer enters.
+     */
+    private static final class Writers {
+        // Ints per cache line
+        private static final int PADDING = 16;
+        private static final int STRIPES = Integer.highestOneBit(
+                Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+
+        private final AtomicIntegerArray counts = new AtomicIntegerArray(STRIPES * PADDING);
+        private volatile boolean closed;
+
+        private static int stripe() {
+            // A thread always gets the same stripe, so it never leaves the stripe it entered
+            return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+        }
+
+        boolean enter() {
+            final int stripe = stripe();
+            counts.incrementAndGet(stripe);
+            if (closed) {
+                counts.decrementAndGet(stripe);
+                return false;
+            }
+            return true;
+        }
+
+        void exit() {
+            counts.decrementAndGet(stripe());
+        }
+
+        /**
+         * Close for writers and wait until entered ones leave.
+         * A writer either sees the close and leaves or is seen by the wait,
+         * as its increment and the read of the flag are ordered against the close and the sum.
+         */
+        void closeAndAwait() {
+            closed = true;
+            while (true) {
+                int sum = 0;
+                for (int i = 0; i < STRIPES; i++) {
+                    sum += counts.get(i * PADDING);
+                }
+                if (sum == 0) {
+                    return;
+                }
+                Thread.yield();
+            }
+        }
+    }
 
     /**
      * Queue for flushing tables.
-     * @param memFlushThreshold threshold to flush table
+     * @param config flush threshold, kind of memtables, flush queue and write stall parameters
      * @param startGeneration start value of generation
+     * @param commitLog log which every update is written to before memtable
+     * @throws IOException if log segment can`t be created
      */
-    public MemTablePool(final long memFlushThreshold, final int startGeneration) {
-        this.memFlushThreshold = memFlushThreshold;
+    MemTablePool(
+            @NotNull final DAOConfig config,
+            final int startGeneration,
+            @NotNull final CommitLog commitLog) throws IOException {
+        assert config.flushThreads > 0;
+        assert config.flushQueueDepth > 0;
+        this.memFlushThreshold = config.flushThreshold;
         this.generation = startGeneration;
-        this.current = new MemTable();
-        this.pendingFlush = new TreeMap<>();
-        this.flushQueue = new ArrayBlockingQueue<>(2);
+        this.commitLog = commitLog;
+        this.memTables = config.offHeapMemTable ? ArenaMemTable::new : HeapMemTable::new;
+        this.flushers = config.flushThreads;
+        this.writeStall = config.writeStall;
+        this.writeDelayMillis = config.writeDelayMillis;
+        this.current = new Active(memTables.get(), commitLog.roll());
+        this.readable = Collections.singletonList(current.table);
+        this.flushQueue = new ArrayBlockingQueue<>(config.flushQueueDepth);
+    }
+
+    /**
+     * Memtables to read, a table being flushed stays here until it is published among SSTables.
+     * Tables taking writes may get updates after the list is taken.
+     * @return current memtable, frozen memtables and memtables pending flush, the newest first
+     */
+    @NotNull
+    List<MemTable> tables() {
+        return readable;
+    }
+
+    /**
+     * Replace list of memtables to read, called under lock of the pool.
+     */
+    private void publishReadable(final MemTable head) {
+        final List<MemTable> tables = new ArrayList<>(frozen.size() + pendingFlush.size() + 1);
+        tables.add(head);
+        tables.addAll(frozen);
+        for (final List<MemTable> group : pendingFlush.descendingMap().values()) {
+            for (final MemTable pending : group) {
+                if (pending != head) {
+                    tables.add(pending);
+                }
+            }
+        }
+        readable = Collections.unmodifiableList(tables);
     }
 
     @NotNull
     @Override
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
-        final Collection<Iterator<Cell>> iterators;
-        lock.readLock().lock();
-        try {
-            iterators = new ArrayList<>(pendingFlush.size() + 1);
-            for (final Table table : pendingFlush.descendingMap().values()) {
-                iterators.add(table.iterator(from));
-            }
-            iterators.add(current.iterator(from));
-        } finally {
-            lock.readLock().unlock();
+        return iterator(tables(), from);
+    }
+
+    /**
+     * Merge memtables of a list taken before.
+     * @param tables memtables, the newest first
+     * @param from the first key
+     * @return newest cells including tombstones, which hide older values of SSTables
+     * @throws IOException never for memtables
+     */
+    @NotNull
+    static Iterator<Cell> iterator(
+            @NotNull final List<MemTable> tables,
+            @NotNull final ByteBuffer from) throws IOException {
+        if (tables.size() == 1) {
+            return tables.get(0).iterator(from);
+        }
+        final List<Iterator<Cell>> iterators = new ArrayList<>(tables.size());
+        for (final MemTable table : tables) {
+            iterators.add(table.iterator(from));
         }
+        return Iters.mergeNewest(iterators, Cell.KEY_ORDER, Cell.VERSION_ORDER, cell -> false);
+    }
 
-        final Iterator<Cell> merged = Iterators.mergeSorted(iterators, Cell.COMPARATOR);
-        return Iters.collapseEquals(merged, Cell::getKey);
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) throws IOException {
+        return get(tables(), key);
+    }
+
+    /**
+     * Look for key in memtables of a list taken before.
+     * @param tables memtables, the newest first
+     * @param key key to look for
+     * @return the newest cell of the key, maybe tombstone, or null if memtables have no such key
+     * @throws IOException never for memtables
+     */
+    @Nullable
+    static Cell get(
+            @NotNull final List<MemTable> tables,
+            @NotNull final ByteBuffer key) throws IOException {
+        for (final MemTable table : tables) {
+            final Cell cell = table.get(key);
+            if (cell != null) {
+                return cell;
+            }
+        }
+        return null;
     }
 
     @Override
     public long sizeInBytes() {
-        lock.readLock().lock();
-        try {
-            return current.sizeInBytes();
-        } finally {
-            lock.readLock().unlock();
+        return current.table.sizeInBytes();
+    }
+
+    /**
+     * Estimated memory retained by current memtable and memtables pending flush.
+     * @return size in bytes
+     */
+    long retainedSize() {
+        long size = 0;
+        for (final MemTable table : tables()) {
+            size += table.sizeInBytes();
         }
+        return size;
+    }
+
+    /**
+     * Size of keys and values in current memtable and memtables pending flush.
+     * @return size in bytes
+     */
+    long payloadSize() {
+        long size = 0;
+        for (final MemTable table : tables()) {
+            size += table.payloadSize();
+        }
+        return size;
     }
 
     /**
      * Update or insert value by key.
      * @param key updated or inserted key
      * @param value updated or inserted value
+     * @throws IOException if write to commit log is failed
      */
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        if (stop.get()) {
-            throw new IllegalStateException("Already stopped!");
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        put(key.duplicate(), Value.of(value));
+    }
+
+    /**
+     * Remove value by key.
+     * @param key deleted key
+     * @throws IOException if write to commit log is failed
+     */
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        put(key.duplicate(), Value.tombstone());
+    }
+
+    /**
+     * Apply update read from commit log on start.
+     * @param key key of update
+     * @param value value or tombstone with its original timestamp
+     * @throws IOException if write to commit log is failed
+     */
+    void replay(@NotNull final ByteBuffer key, @NotNull final Value value) throws IOException {
+        // New updates must win over replayed ones even if wall clock went back since
+        HybridClock.update(value.getTimeStamp());
+        // Not a client write, so it is neither delayed nor rejected, but the memtable is not let
+        // to grow past the threshold either
+        awaitRoom();
+        // Not forced one by one, the commit log forces all replayed updates at the end of replay
+        apply(Collections.singletonList(key), Collections.singletonList(value), true);
+    }
+
+    /**
+     * Apply all mutations of the batch to the same memtable,
+     * with single commit log write and wait for durability.
+     * @param batch mutations to apply
+     * @throws IOException if write to commit log is failed
+     */
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>(batch.size());
+        final List<Value> values = new ArrayList<>(batch.size());
+        batch.apply(new WriteBatch.Handler() {
+            @Override
+            public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+                keys.add(key);
+                values.add(Value.of(value));
+            }
+
+            @Override
+            public void remove(@NotNull final ByteBuffer key) {
+                keys.add(key);
+                values.add(Value.tombstone());
+            }
+        });
+        put(keys, values);
+    }
+
+    private void put(@NotNull final ByteBuffer key, @NotNull final Value value) throws IOException {
+        put(Collections.singletonList(key), Collections.singletonList(value));
+    }
+
+    private void put(
+            @NotNull final List<ByteBuffer> keys,
+            @NotNull final List<Value> values) throws IOException {
+        if (keys.isEmpty()) {
+            return;
         }
-        lock.readLock().lock();
+        admit();
+        apply(keys, values, false);
+    }
+
+    private void apply(
+            @NotNull final List<ByteBuffer> keys,
+            @NotNull final List<Value> values,
+            final boolean replayed) throws IOException {
+        final Active active = enter();
+        final long position;
         try {
-            current.upsert(key.duplicate(), value.duplicate());
+            position = commitLog.append(active.log, keys, values, replayed);
+            for (int i = 0; i < keys.size(); i++) {
+                active.table.put(keys.get(i), values.get(i));
+            }
         } finally {
-            lock.readLock().unlock();
+            active.writers.exit();
         }
-        enqueueFlush();
+        if (!replayed) {
+            commitLog.awaitDurable(position);
+        }
+        enqueueFlush(active);
     }
 
     /**
-     * Remove value by key.
-     * @param key deleted key
+     * Hold back write while flush queue is full, or reject it, according to write stall policy.
+     * With {@link DAOConfig.WriteStall#DELAY} policy a write is also delayed when the queue is half full.
      */
-    public void remove(@NotNull final ByteBuffer key) {
-        if (stop.get()) {
-            throw new IllegalStateException("Already stopped!");
+    private void admit() throws IOException {
+        if (flushQueue.remainingCapacity() > 0) {
+            if (writeStall == DAOConfig.WriteStall.DELAY
+                    && flushQueue.size() * 2 >= flushQueue.size() + flushQueue.remainingCapacity()) {
+                slowdowns.increment();
+                try {
+                    Thread.sleep(writeDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while delayed by flush");
+                }
+            }
+            return;
+        }
+        if (writeStall == DAOConfig.WriteStall.REJECT) {
+            rejections.increment();
+            throw new WriteRejectedException("Flush queue is full");
         }
-        lock.readLock().lock();
+        stalls.increment();
+        final long start = System.nanoTime();
         try {
-            current.remove(key);
+            awaitRoom();
         } finally {
-            lock.readLock().unlock();
+            stallNanos.add(System.nanoTime() - start);
         }
-        enqueueFlush();
     }
 
-    TableToFlush takeToFlush() throws InterruptedException {
-        return flushQueue.take();
+    /**
+     * Wait until flush queue has room or the pool is closed.
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    void awaitRoom() throws InterruptedIOException {
+        try {
+            synchronized (queueMonitor) {
+                while (flushQueue.remainingCapacity() == 0 && !stop.get()) {
+                    queueMonitor.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for flush");
+        }
+    }
+
+    /**
+     * Replace current memtable unless it is empty, so memtables taken before never change.
+     * The replaced memtable is frozen rather than queued for flush, so it neither waits for the queue
+     * nor becomes an SSTable of its own. Writers of the replaced memtable are done on return.
+     * @return frozen memtables and memtables pending flush, the newest first
+     */
+    @NotNull
+    synchronized List<MemTable> freeze() {
+        if (stop.get()) {
+            throw new IllegalStateException("Already stopped!");
+        }
+        final Active active = current;
+        if (active.table.rows() > 0) {
+            frozen.addFirst(active.table);
+            final long bytes = frozenBytes + active.table.sizeInBytes();
+            frozenBytes = bytes;
+            // Keeps the log segment, which is deleted once all memtables written to it are flushed
+            final Active next = new Active(memTables.get(), active.log);
+            publishReadable(next.table);
+            current = next;
+            active.writers.closeAndAwait();
+        }
+        final List<MemTable> tables = readable;
+        return tables.subList(1, tables.size());
     }
 
-    TableToFlush peekFlushQueue() {
-        return flushQueue.peek();
+    /**
+     * Whether flush queue has room, so a write is admitted at once.
+     * @return false if writes are held back or rejected now
+     */
+    boolean acceptsWrites() {
+        return !stop.get() && flushQueue.remainingCapacity() > 0;
     }
 
-    void flushed(final int generation) {
-        lock.writeLock().lock();
-        try {
-            pendingFlush.remove(generation);
-        } finally {
-            lock.writeLock().unlock();
+    /**
+     * Counters of writes held back by full flush queue.
+     * @return snapshot of counters
+     */
+    WriteStallStats writeStallStats() {
+        return new WriteStallStats(
+                stalls.sum(),
+                TimeUnit.NANOSECONDS.toMillis(stallNanos.sum()),
+                slowdowns.sum(),
+                rejections.sum());
+    }
+
+    /**
+     * Register writer of current memtable, so it is not flushed until the writer is done.
+     */
+    private Active enter() {
+        while (true) {
+            if (stop.get()) {
+                throw new IllegalStateException("Already stopped!");
+            }
+            final Active active = current;
+            if (active.writers.enter()) {
+                return active;
+            }
+            // Memtable is being replaced, the new one is published already
+            Thread.onSpinWait();
         }
     }
 
-    private void enqueueFlush() {
-        if (current.sizeInBytes() > memFlushThreshold) {
-            TableToFlush toFlush = null;
-            lock.writeLock().lock();
+    TableToFlush takeToFlush() throws InterruptedException {
+        final TableToFlush toFlush = flushQueue.take();
+        synchronized (queueMonitor) {
+            queueMonitor.notifyAll();
+        }
+        return toFlush;
+    }
+
+    /**
+     * Wait until tables of all older generations taken by other flushers are published,
+     * so SSTables appear in generation order and compaction never merges a table
+     * with older ones while a table of generation in between is still being written.
+     * A table is never published while an older memtable is still read, as readers probe memtables
+     * before SSTables and the older one would hide updates of the newer table.
+     * @param generation generation of written table
+     * @throws InterruptedIOException if interrupted while waiting
+     * @throws IOException if flush of an older table is given up
+     */
+    void awaitTurn(final int generation) throws IOException {
+        synchronized (flushOrder) {
             try {
-                if (current.sizeInBytes() > memFlushThreshold) {
-                    toFlush = new TableToFlush(generation, current.iterator(ByteBuffer.allocate(0)));
-                    pendingFlush.put(generation, current);
-                    generation++;
-                    current = new MemTable();
-                }
-            } finally {
-                lock.writeLock().unlock();
-            }
-            if (toFlush != null) {
-                try {
-                    flushQueue.put(toFlush);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+                while (!unpublished.isEmpty() && unpublished.first() < generation) {
+                    if (abandoned < generation) {
+                        throw new IOException("Flush of older table " + abandoned + " is given up");
+                    }
+                    flushOrder.wait();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for older flushes");
             }
         }
     }
 
-    @Override
-    public void close() throws IOException {
-        if (!stop.compareAndSet(false, true)) {
+    /**
+     * Forget flushed table and delete its commit log segment.
+     * @param generation generation of flushed table
+     * @throws IOException if log segment can`t be deleted
+     */
+    void flushed(final int generation) throws IOException {
+        synchronized (this) {
+            pendingFlush.remove(generation);
+            publishReadable(current.table);
+        }
+        published(generation);
+        final Integer log = pendingLogs.remove(generation);
+        if (log != null) {
+            commitLog.delete(log);
+        }
+    }
+
+    /**
+     * Give up flush of table on close. Its memtables and commit log segment are kept,
+     * and newer tables are not published either, see {@link #awaitTurn(int)}, so their segments
+     * are kept too and all of them are replayed in order on next start.
+     * @param generation generation of table which is not flushed
+     */
+    void flushFailed(final int generation) {
+        synchronized (flushOrder) {
+            abandoned = Math.min(abandoned, generation);
+            flushOrder.notifyAll();
+        }
+    }
+
+    /**
+     * Cells of memtables pending flush into table of the generation, read again when the flush is retried.
+     * @param generation generation of table being flushed
+     * @return cells in ascending order
+     * @throws IOException never for memtables
+     */
+    @NotNull
+    Iterator<Cell> pendingCells(final int generation) throws IOException {
+        return iterator(pendingFlush.get(generation), ByteBuffer.allocate(0));
+    }
+
+    /**
+     * Whether the pool is closed, so the last memtable is queued and no retry of a flush is awaited.
+     * @return true after {@link #close()}
+     */
+    boolean isStopped() {
+        return stop.get();
+    }
+
+    private void published(final int generation) {
+        synchronized (flushOrder) {
+            unpublished.remove(generation);
+            flushOrder.notifyAll();
+        }
+    }
+
+    /**
+     * Take generation for table written outside the pool, e.g. by compaction.
+     * It is greater than generations of tables already pending flush and less than of the current one,
+     * so generations of SSTables never collide.
+     * @return free generation
+     */
+    synchronized int reserveGeneration() {
+        return generation++;
+    }
+
+    private void enqueueFlush(final Active full) throws IOException {
+        if (full.table.sizeInBytes() + frozenBytes <= memFlushThreshold) {
             return;
         }
-        TableToFlush toFlush;
-        lock.writeLock().lock();
-        try {
-            toFlush = new TableToFlush(generation, current.iterator(ByteBuffer.allocate(0)), true);
-        } finally {
-            lock.writeLock().unlock();
+        synchronized (this) {
+            // Flushers only take from the queue, so it is not full until the offer below
+            if (current != full || stop.get() || flushQueue.remainingCapacity() == 0) {
+                return;
+            }
+            final Active next = new Active(memTables.get(), commitLog.roll());
+            offer(queue(full, next));
         }
+    }
+
+    /**
+     * Queue table for flush under lock of the pool, when the queue is known to have room.
+     */
+    private void offer(final TableToFlush toFlush) {
+        final boolean queued = flushQueue.offer(toFlush);
+        assert queued;
+    }
+
+    /**
+     * Replace memtable and take it for flush along with frozen memtables, called under lock of the pool.
+     * The caller queues the table, and never blocks on the queue under the lock,
+     * as flushers take the lock to publish flushed tables.
+     */
+    private TableToFlush queue(
+            final Active full,
+            @Nullable final Active next) throws IOException {
+        final List<MemTable> group = new ArrayList<>(frozen.size() + 1);
+        group.add(full.table);
+        group.addAll(frozen);
+        frozen.clear();
+        frozenBytes = 0;
+        pendingFlush.put(generation, Collections.unmodifiableList(group));
+        pendingLogs.put(generation, full.log);
+        synchronized (flushOrder) {
+            unpublished.add(generation);
+        }
+        // Readers see the new memtable before it takes writes
+        if (next != null) {
+            publishReadable(next.table);
+            current = next;
+        } else {
+            publishReadable(full.table);
+        }
+        full.writers.closeAndAwait();
+        int rows = 0;
+        for (final MemTable table : group) {
+            rows += table.rows();
+        }
+        final TableToFlush toFlush = new TableToFlush(
+                generation,
+                iterator(group, ByteBuffer.allocate(0)),
+                rows);
+        generation++;
+        return toFlush;
+    }
+
+    private void putToFlush(final TableToFlush toFlush) {
         try {
             flushQueue.put(toFlush);
         } catch (InterruptedException e) {
@@ -162,11 +650,37 @@ public class MemTablePool implements Table, Closeable {
         }
     }
 
-    public boolean start() {
-        return stop.compareAndSet(true, false);
+    /**
+     * Stop writes and queue the last memtable for flush followed by a poison pill per flusher.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!stop.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (queueMonitor) {
+            queueMonitor.notifyAll();
+        }
+        final TableToFlush last;
+        synchronized (this) {
+            last = queue(current, null);
+        }
+        // Out of the lock, as the queue may be full and flushers publish tables under the lock
+        putToFlush(last);
+        for (int i = 0; i < flushers; i++) {
+            putToFlush(new TableToFlush(-1, Collections.emptyIterator(), 0, true));
+        }
     }
 
-    public Iterator<Cell> getIteratorOfCurrentMemTable(@NotNull final ByteBuffer from) {
-        return current.iterator(from);
+    /**
+     * Number of rows in current memtable and tables pending flush.
+     * @return number of rows, some of which may be in several tables
+     */
+    public int rows() {
+        int rows = 0;
+        for (final MemTable table : tables()) {
+            rows += table.rows();
+        }
+        return rows;
     }
 }
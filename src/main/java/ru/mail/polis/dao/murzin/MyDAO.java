@@ -1,97 +1,359 @@
 package ru.mail.polis.dao.murzin;
 
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import ru.mail.polis.dao.DAO;
 import ru.mail.polis.dao.Iters;
+import ru.mail.polis.dao.NoSuchElementLite;
+import ru.mail.polis.dao.Snapshot;
+import ru.mail.polis.dao.WriteBatch;
 import ru.mail.polis.Record;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 public class MyDAO implements DAO {
+    private static final Logger logger = LoggerFactory.getLogger(MyDAO.class);
     private static final String BASE_NAME = "_SSTable";
     private static final String SUFFIX = ".dat";
     private static final String TEMP = ".tmp";
+    // Live tables with their levels, written by previous version instead of manifest
+    private static final String LEVELS = "Levels";
+    // Delay before the first retry of failed flush, doubled by every next one
+    private static final long FLUSH_RETRY_MILLIS = 100;
+    private static final long MAX_FLUSH_RETRY_MILLIS = 10_000;
 
     private final File base;
+    private final boolean mmap;
+    private final int blockSize;
+    private final BlockCache blockCache;
     private final ByteBuffer emptyBuffer = ByteBuffer.allocate(0);
+    private final CommitLog commitLog;
     private final MemTablePool memTablePool;
-    private final FlusherThread flusher;
-    private final Collection<FileTable> fileTables;
+    private final List<FlusherThread> flushers;
+    private final ExecutorService compactor;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    // Null if automatic compaction is disabled
+    private final CompactionStrategy compactionStrategy;
+    private final AtomicBoolean strategyScheduled = new AtomicBoolean();
+    // Size of tables of deeper levels, zero if compaction is not leveled
+    private final long levelTableSize;
+    private final Manifest manifest;
+    private final AtomicReference<IOException> compactionFailure = new AtomicReference<>();
+    private final AtomicReference<IOException> flushFailure = new AtomicReference<>();
+    // Actions which delete files of compacted tables still held by views, by file of table.
+    // An entry is removed once its table is released, so only tables still being read are kept
+    private final Map<File, Runnable> obsoleteTables = new ConcurrentHashMap<>();
+    private final Object tablesLock = new Object();
+    private volatile TableSet fileTables;
+    // Loads indexes of tables opened lazily, null if they are loaded on first access
+    @Nullable
+    private final ExecutorService warmUp;
+    private volatile boolean closed;
 
     private class FlusherThread extends Thread {
-        public FlusherThread() {
-            super("flusher");
+        FlusherThread(final int number) {
+            super("flusher-" + number);
         }
 
         @Override
         public void run() {
-            boolean poisonReceived = false;
-            while (!poisonReceived && !Thread.currentThread().isInterrupted()) {
-                TableToFlush toFlush;
+            while (!Thread.currentThread().isInterrupted()) {
+                final TableToFlush toFlush;
                 try {
                     toFlush = memTablePool.takeToFlush();
-                    poisonReceived = toFlush.isPoisonPill();
-                    flush(toFlush.getGeneration(), toFlush.getTableIterator());
-                    memTablePool.flushed(toFlush.getGeneration());
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
+                    break;
+                }
+                if (toFlush.isPoisonPill()) {
+                    break;
+                }
+                if (flushWithRetries(toFlush)) {
+                    scheduleCompaction();
+                }
+            }
+        }
+
+        /**
+         * Flush table until it succeeds, so no newer table is published meanwhile and writes are held back
+         * by the full flush queue. Once DAO is closed, the flush is given up along with newer ones,
+         * and their updates are replayed from commit log on next start.
+         */
+        private boolean flushWithRetries(final TableToFlush toFlush) {
+            final int generation = toFlush.getGeneration();
+            Iterator<Cell> cells = toFlush.getTableIterator();
+            long retryMillis = FLUSH_RETRY_MILLIS;
+            while (true) {
+                try {
+                    flush(generation, cells, toFlush.getRows());
+                    break;
                 } catch (IOException e) {
-                    e.getMessage();
+                    if (memTablePool.isStopped()) {
+                        logger.error("Flush of table {} is given up, its updates stay in commit log", generation, e);
+                        giveUp(generation, e);
+                        return false;
+                    }
+                    logger.warn("Flush of table {} failed, retry in {} ms", generation, retryMillis, e);
                 }
+                try {
+                    Thread.sleep(retryMillis);
+                    cells = memTablePool.pendingCells(generation);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    giveUp(generation, new InterruptedIOException("Interrupted while retrying flush"));
+                    return false;
+                } catch (IOException e) {
+                    giveUp(generation, e);
+                    return false;
+                }
+                retryMillis = Math.min(retryMillis * 2, MAX_FLUSH_RETRY_MILLIS);
+            }
+            try {
+                memTablePool.flushed(generation);
+            } catch (IOException e) {
+                // The table is published, only its commit log segment is left
+                logger.error("Commit log of table {} can`t be deleted", generation, e);
             }
+            return true;
+        }
+
+        private void giveUp(
+                final int generation,
+                final IOException failure) {
+            flushFailure.compareAndSet(null, failure);
+            memTablePool.flushFailed(generation);
         }
     }
 
     /**
      * The Log-Structured Merge-Tree implementation DAO.
+     * Only SSTables recorded in manifest are opened, other files of SSTables are left by crash
+     * and are deleted in background. Indexes of SSTables are read before DAO is created,
+     * unless {@link DAOConfig#lazyOpen} is set. Updates left in commit log by previous run are replayed into memtable.
      * @param base path to working directory
-     * @param flushThreshold threshold value of flush
-     * @throws IOException if walk on base directory is failed or can`t create SSTable
+     * @param config tunable parameters of DAO
+     * @throws IOException if manifest can`t be read or written, can`t open SSTable or replay commit log
      */
-    @SuppressWarnings({"unchecked", "rawtypes"})
     public MyDAO(
             final File base,
-            final long flushThreshold) throws IOException {
+            final DAOConfig config) throws IOException {
         this.base = base;
+        this.mmap = config.mmap;
+        this.blockSize = config.blockSize;
+        assert blockSize > 0;
+        this.blockCache = config.blockCacheSize > 0 ? new BlockCache(config.blockCacheSize) : null;
+        final long flushThreshold = config.flushThreshold;
         assert flushThreshold >= 0L;
-        final int[] generation = {0};
-        this.fileTables = new CopyOnWriteArrayList<>();
-        final List<Path>[] errorsCreateSSTable = new List[]{new ArrayList<>()};
 
-        try (Stream<Path> files = Files.walk(base.toPath())) {
-            files.filter(Files::isRegularFile)
-                    .filter(p -> p.getFileName().toString().endsWith(BASE_NAME + SUFFIX))
-                    .forEach(p -> {
-                        addFileTable(errorsCreateSSTable[0], p);
-                        generation[0] = Math.max(generation[0], getGenerationOf(p.getFileName().toString()));
-                    });
+        Manifest.State recorded = Manifest.read(base);
+        if (recorded == null) {
+            recorded = scan();
+        }
+        final Map<Integer, FileTable> tables = new HashMap<>();
+        final Map<Integer, Integer> levels = new HashMap<>();
+        try {
+            for (final Map.Entry<String, Integer> entry : recorded.getTables().entrySet()) {
+                final File file = new File(base, entry.getKey());
+                if (!file.exists()) {
+                    throw new IOException("SSTable recorded in manifest is missing: " + file);
+                }
+                final int generation = getGenerationOf(entry.getKey());
+                tables.put(generation, new FileTable(file, mmap, blockCache));
+                if (entry.getValue() > 0) {
+                    levels.put(generation, entry.getValue());
+                }
+            }
+            if (!config.lazyOpen) {
+                for (final FileTable table : tables.values()) {
+                    table.load();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            closeAll(new ArrayList<>(tables.values()), e);
+            throw e;
+        }
+        this.fileTables = TableSet.of(tables, levels);
+        fileTables.retainTables();
+
+        // Everything which may fail is opened before threads are started, so a failure leaks none of them
+        final List<Closeable> opened = new ArrayList<>(tables.values());
+        try {
+            this.manifest = new Manifest(base, recorded);
+            opened.add(manifest);
+            Files.deleteIfExists(new File(base, LEVELS).toPath());
+            this.commitLog = new CommitLog(base, config.durability, config.groupCommitMillis);
+            opened.add(commitLog);
+            this.memTablePool = new MemTablePool(config, recorded.getMaxGeneration() + 1, commitLog);
+        } catch (IOException | RuntimeException e) {
+            closeAll(opened, e);
+            throw e;
+        }
+
+        this.compactor = Executors.newSingleThreadExecutor(r -> new Thread(r, "compactor"));
+        final boolean leveled = config.compactionStyle == DAOConfig.CompactionStyle.LEVELED;
+        this.levelTableSize = leveled ? config.levelBaseSize / LeveledCompaction.LEVEL_RATIO : 0;
+        if (config.compactionThreshold < 2) {
+            this.compactionStrategy = null;
+        } else if (leveled) {
+            this.compactionStrategy = new LeveledCompaction(config.compactionThreshold, config.levelBaseSize);
+        } else {
+            this.compactionStrategy = new SizeTieredCompaction(
+                    config.compactionThreshold,
+                    Math.max(config.compactionThreshold, config.maxCompactionTables),
+                    flushThreshold);
         }
-        this.memTablePool = new MemTablePool(flushThreshold, generation[0] + 1);
-        this.flusher = new FlusherThread();
-        this.flusher.start();
-        if (!errorsCreateSSTable[0].isEmpty()) {
-            throw new IOException("can`t create FileTable with path : " + errorsCreateSSTable[0].get(0).toString());
+        // Before any compaction, so tables replaced by it are not deleted while being read
+        final Manifest.State live = recorded;
+        compactor.execute(() -> runCompaction(() -> deleteUnused(live)));
+
+        this.flushers = new ArrayList<>(config.flushThreads);
+        for (int i = 1; i <= config.flushThreads; i++) {
+            final FlusherThread flusher = new FlusherThread(i);
+            flusher.start();
+            flushers.add(flusher);
+        }
+        // Flushers run meanwhile, as replayed updates may fill several memtables
+        try {
+            commitLog.replay(memTablePool::replay);
+        } catch (IOException | RuntimeException e) {
+            // Replayed segments are kept and replayed again on next start
+            try {
+                stop();
+            } catch (IOException | RuntimeException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+
+        if (config.lazyOpen && config.warmUpThreads > 0 && !tables.isEmpty()) {
+            final AtomicInteger threads = new AtomicInteger();
+            this.warmUp = Executors.newFixedThreadPool(
+                    Math.min(config.warmUpThreads, tables.size()),
+                    r -> new Thread(r, "warm-up-" + threads.incrementAndGet()));
+            // The newest tables are probed first by reads
+            for (final FileTable table : fileTables.tables().values()) {
+                warmUp.execute(() -> warmUp(table));
+            }
+            warmUp.shutdown();
+        } else {
+            this.warmUp = null;
         }
     }
 
-    private void addFileTable(final List<Path> listErrors, final Path path) {
+    /**
+     * Close resources opened by constructor which failed, so the failure is the one reported.
+     */
+    private static void closeAll(
+            final List<? extends Closeable> resources,
+            final Exception failure) {
+        for (final Closeable resource : resources) {
+            try {
+                resource.close();
+            } catch (IOException | RuntimeException e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    private void warmUp(final FileTable table) {
+        if (closed) {
+            return;
+        }
         try {
-            fileTables.add(new FileTable(path.toFile()));
+            table.load();
         } catch (IOException e) {
-            listErrors.add(path);
+            // The table is loaded again on first access, which reports the failure to the reader
+            logger.warn("Can`t load index of table {}", table.getFile(), e);
+        }
+    }
+
+    /**
+     * Find live SSTables of directory written by version without manifest.
+     * These are tables recorded by leveled compaction, otherwise all tables except ones
+     * merged by compaction, which were not deleted before crash.
+     */
+    private Manifest.State scan() throws IOException {
+        final List<String> names = new ArrayList<>();
+        try (Stream<Path> files = Files.list(base.toPath())) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(BASE_NAME + SUFFIX))
+                    .forEach(names::add);
+        }
+        int maxGeneration = 0;
+        for (final String name : names) {
+            maxGeneration = Math.max(maxGeneration, getGenerationOf(name));
+        }
+        Map<String, Integer> live = readLevels();
+        if (live == null) {
+            live = new HashMap<>();
+            for (final String name : names) {
+                if (!isCovered(names, name)) {
+                    live.put(name, 0);
+                }
+            }
+        }
+        return new Manifest.State(live, maxGeneration);
+    }
+
+    /**
+     * Delete files of tables not recorded in manifest and temporary files, which are left by crash.
+     * Files of generations greater than recorded ones are being written now and are kept.
+     */
+    private void deleteUnused(final Manifest.State live) throws IOException {
+        final List<Path> unused = new ArrayList<>();
+        try (Stream<Path> files = Files.list(base.toPath())) {
+            files.forEach(path -> {
+                String name = path.getFileName().toString();
+                final boolean temp = name.endsWith(TEMP);
+                if (temp) {
+                    name = name.substring(0, name.length() - TEMP.length());
+                }
+                if (name.endsWith(FileTable.BLOOM_SUFFIX)) {
+                    name = name.substring(0, name.length() - FileTable.BLOOM_SUFFIX.length());
+                }
+                if (name.endsWith(BASE_NAME + SUFFIX)) {
+                    if (!live.getTables().containsKey(name) && getGenerationOf(name) <= live.getMaxGeneration()) {
+                        unused.add(path);
+                    }
+                } else if (temp) {
+                    unused.add(path);
+                }
+            });
+        }
+        for (final Path path : unused) {
+            Files.deleteIfExists(path);
         }
     }
 
@@ -102,21 +364,34 @@ public class MyDAO implements DAO {
      * @throws IOException if fileTable.iterator(from) is failed
      */
     private Iterator<Cell> iteratorAliveCells(@NotNull final ByteBuffer from) throws IOException {
-        final List<Iterator<Cell>> listIterators = new CopyOnWriteArrayList<>();
-        for (final FileTable fileTable : fileTables) {
-            listIterators.add(fileTable.iterator(from));
+        final ReadView view = view();
+        try {
+            return view.iterator(from, true);
+        } finally {
+            view.release();
         }
+    }
 
-        listIterators.add(memTablePool.getIteratorOfCurrentMemTable(from));
-        final Iterator<Cell> cells = Iters.collapseEquals(
-                Iterators.mergeSorted(listIterators, Cell.COMPARATOR),
-                Cell::getKey
-        );
+    /**
+     * Pin current memtables and SSTables.
+     * @return view of tables for consistent reads, which must be released
+     */
+    private ReadView view() {
+        // Memtables first: a table flushed meanwhile is then seen either in the pool or among SSTables
+        return view(memTablePool.tables());
+    }
 
-        return Iterators.filter(
-                        cells,
-                        cell -> !cell.getValue().isRemoved()
-                );
+    /**
+     * Pin current SSTables along with memtables taken before.
+     */
+    private ReadView view(final List<MemTable> memTables) {
+        while (true) {
+            final TableSet tables = fileTables;
+            if (tables.retain()) {
+                return new ReadView(memTables, tables);
+            }
+            // The set is replaced and released meanwhile, so the current one is newer
+        }
     }
 
     @NotNull
@@ -128,36 +403,247 @@ public class MyDAO implements DAO {
                 cell -> Record.of(cell.getKey(), cell.getValue().getData()));
     }
 
+    /**
+     * Point lookup which probes tables from the newest to the oldest one:
+     * memtable, tables pending flush and then SSTables, see {@link TableSet#get(ByteBuffer)}.
+     * It stops at the first table containing the key, either as value or as tombstone.
+     * @param key key to look for
+     * @return value of the key
+     * @throws IOException if read of SSTable is failed
+     * @throws NoSuchElementException if there is no alive value for the key
+     */
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final ReadView view = view();
+        final Cell cell;
+        try {
+            cell = view.get(key);
+        } finally {
+            view.release();
+        }
+        if (cell == null || cell.getValue().isRemoved()) {
+            throw new NoSuchElementLite("Not found");
+        }
+        return cell.getValue().getData();
+    }
+
+    /**
+     * Snapshot pins immutable tables: the current memtable is replaced and frozen without a flush,
+     * see {@link MemTablePool#freeze()}, and SSTables are taken under the same lock
+     * as they are replaced by flushes and compactions. It never waits for the flush queue.
+     * Files of SSTables replaced by compaction stay on disk until all snapshots holding them are closed,
+     * and are deleted by the last close.
+     * @return snapshot which reads data written before it is taken
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() {
+        synchronized (tablesLock) {
+            final ReadView view = view(memTablePool.freeze());
+            try {
+                return new ViewSnapshot(view);
+            } finally {
+                view.release();
+            }
+        }
+    }
+
+    /**
+     * Point lookups of several keys in the same tables, so they see a consistent state.
+     */
+    @NotNull
+    @Override
+    public Map<ByteBuffer, ByteBuffer> getAll(@NotNull final Collection<ByteBuffer> keys) throws IOException {
+        final ReadView view = view();
+        final Map<ByteBuffer, ByteBuffer> result = new HashMap<>();
+        try {
+            for (final ByteBuffer key : keys) {
+                final Cell cell = view.get(key);
+                if (cell != null && !cell.getValue().isRemoved()) {
+                    result.put(key, cell.getValue().getData());
+                }
+            }
+        } finally {
+            view.release();
+        }
+        return result;
+    }
+
+    /**
+     * Counters of shared block cache.
+     * @return hit, miss and eviction counters or null if block cache is disabled
+     */
+    @Nullable
+    public CacheStats getBlockCacheStats() {
+        return blockCache == null ? null : blockCache.stats();
+    }
+
+    /**
+     * Counters of writes held back because flushers can`t keep up with them.
+     * @return stall, slowdown and rejection counters
+     */
+    public WriteStallStats getWriteStallStats() {
+        return memTablePool.writeStallStats();
+    }
+
+    /**
+     * Size of keys and values kept in memtables, including ones pending flush.
+     * @return size in bytes
+     */
+    public long getMemTablePayloadSize() {
+        return memTablePool.payloadSize();
+    }
+
+    /**
+     * Estimated memory retained by memtables, including ones pending flush.
+     * It is several times larger than payload for small keys and values.
+     * @return size in bytes
+     */
+    public long getMemTableRetainedSize() {
+        return memTablePool.retainedSize();
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
         memTablePool.upsert(key.duplicate(), value.duplicate());
     }
 
-    public void flush(final int generation, final Iterator<Cell> iterator) throws IOException {
-        if (iterator.hasNext()) {
-            final File dest = new File(base, generation + BASE_NAME + SUFFIX);
-            FileTable.write(iterator, dest);
-            fileTables.add(new FileTable(dest));
+    /**
+     * Write cells to SSTable of given generation.
+     * @param generation generation of new table
+     * @param iterator cells to write
+     * @param rows number of cells
+     * @throws IOException if write is failed
+     */
+    public void flush(final int generation, final Iterator<Cell> iterator, final int rows) throws IOException {
+        // Memtable may be already merged into SSTable by compaction
+        if (!iterator.hasNext() || generation < fileTables.coveredGeneration()) {
+            return;
+        }
+        final File dest = fileOf(generation, generation);
+        FileTable.write(iterator, rows, blockSize, dest);
+        final FileTable table = openWritten(dest);
+        final boolean[] added = {false};
+        try {
+            memTablePool.awaitTurn(generation);
+            updateTables(tables -> {
+                if (generation < tables.coveredGeneration()) {
+                    return tables;
+                }
+                added[0] = true;
+                return tables.replace(
+                        Collections.emptySet(),
+                        Collections.singletonMap(generation, table),
+                        Collections.emptyMap(),
+                        0);
+            });
+        } catch (IOException e) {
+            // The file is written again by retry or replaced by a newer one on next start
+            table.close();
+            throw e;
+        }
+        if (!added[0]) {
+            table.obsolete();
+            table.close();
         }
     }
 
+    @Override
+    public boolean acceptsWrites() {
+        return memTablePool.acceptsWrites();
+    }
+
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
         memTablePool.remove(key);
     }
 
+    @Override
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        memTablePool.write(batch);
+    }
+
     @Override
     public void close() throws IOException {
+        closed = true;
+        if (warmUp != null) {
+            try {
+                warmUp.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        stop();
+    }
+
+    /**
+     * Stop background threads, flush the last memtable and close tables and logs.
+     */
+    private void stop() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         memTablePool.close();
         try {
-            flusher.join();
+            for (final FlusherThread flusher : flushers) {
+                flusher.join();
+            }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         } finally {
-            for (FileTable fileTable : fileTables) {
+            fileTables.release();
+            // Tables still held by views are closed as well, the views are not read after close
+            for (FileTable fileTable : fileTables.tables().values()) {
                 fileTable.close();
             }
+            obsoleteTables.values().forEach(Runnable::run);
+            commitLog.close();
+            manifest.close();
+        }
+        final IOException flushFailed = flushFailure.get();
+        if (flushFailed != null) {
+            throw new IOException("Flush failed", flushFailed);
+        }
+        final IOException failure = compactionFailure.get();
+        if (failure != null) {
+            throw new IOException("Compaction failed", failure);
+        }
+    }
+
+    /**
+     * SSTable of memtable is named by its generation. SSTable merged by compaction
+     * is named by the newest and the oldest generation of tables it replaces,
+     * and it takes place of the newest one.
+     */
+    private File fileOf(
+            final int generation,
+            final int oldestGeneration) {
+        if (generation == oldestGeneration) {
+            return new File(base, generation + BASE_NAME + SUFFIX);
         }
+        return new File(base, generation + "_" + oldestGeneration + BASE_NAME + SUFFIX);
+    }
+
+    private int oldestGenerationOf(final String name) {
+        final String[] parts = name.split("_", -1);
+        return parts.length > 2 ? Integer.parseInt(parts[1]) : getGenerationOf(name);
+    }
+
+    private boolean isCovered(
+            final Collection<String> names,
+            final String covered) {
+        for (final String name : names) {
+            if (!name.equals(covered)
+                    && oldestGenerationOf(name) <= oldestGenerationOf(covered)
+                    && getGenerationOf(covered) <= getGenerationOf(name)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private int getGenerationOf(final String name) {
@@ -174,45 +660,272 @@ public class MyDAO implements DAO {
         return result;
     }
 
-    @Override
-    public void compact() throws IOException {
-        final Iterator<Cell> cellIterator = iteratorAliveCells(emptyBuffer);
-        final int[] generation = {0};
-        try (Stream<Path> files = Files.walk(base.toPath())) {
-            files.filter(Files::isRegularFile)
-                    .filter(p -> p.getFileName().toString().endsWith(BASE_NAME + SUFFIX))
-                    .forEach(p -> {
-                        generation[0] = Math.max(generation[0], getGenerationOf(p.getFileName().toString()));
-                    });
-        }
-        final File dest = new File(base, generation[0] + 1 + BASE_NAME + SUFFIX);
-        FileTable.write(cellIterator, dest);
-        memTablePool.close();
+    @FunctionalInterface
+    private interface TableSetChange {
+        TableSet apply(TableSet tables) throws IOException;
+    }
 
-        final List<Path> errorsDeleteFiles = new ArrayList<>();
-        try (Stream<Path> files = Files.walk(base.toPath())) {
-            files.filter(Files::isRegularFile)
-                    .filter(p -> p.getFileName().toString().endsWith(BASE_NAME + SUFFIX))
-                    .forEach(p -> {
-                        if (getGenerationOf(p.getFileName().toString()) != generation[0] + 1) {
-                            deleteFile(errorsDeleteFiles, p);
-                        }
-                    });
+    /**
+     * Replace set of SSTables with its changed copy, so readers never see a partially updated set.
+     * The change is recorded in manifest before it is visible. Removed tables are obsolete,
+     * and their files are deleted once the replaced set is released by DAO and all views holding it.
+     * @param change modification of the set
+     * @throws IOException if the change can`t be recorded
+     */
+    private void updateTables(final TableSetChange change) throws IOException {
+        synchronized (tablesLock) {
+            final TableSet current = fileTables;
+            final TableSet changed = change.apply(current);
+            if (changed == current) {
+                return;
+            }
+            final List<FileTable> replaced = new ArrayList<>();
+            final List<String> removed = new ArrayList<>();
+            for (final Map.Entry<Integer, FileTable> entry : current.tables().entrySet()) {
+                // Merged table may take generation of one of its inputs
+                if (changed.tables().get(entry.getKey()) != entry.getValue()) {
+                    replaced.add(entry.getValue());
+                    removed.add(entry.getValue().getFile().getName());
+                }
+            }
+            final Map<String, Integer> added = new HashMap<>();
+            int maxGeneration = 0;
+            for (final Map.Entry<Integer, FileTable> entry : changed.tables().entrySet()) {
+                if (current.tables().get(entry.getKey()) != entry.getValue()) {
+                    added.put(entry.getValue().getFile().getName(), changed.levelOf(entry.getKey()));
+                    maxGeneration = Math.max(maxGeneration, entry.getKey());
+                }
+            }
+            manifest.commit(removed, added, maxGeneration);
+            // Before the replaced set is released, so the last release deletes files
+            for (final FileTable old : replaced) {
+                final File file = old.getFile();
+                obsoleteTables.put(file, old.obsolete(() -> obsoleteTables.remove(file)));
+            }
+            changed.retainTables();
+            fileTables = changed;
+            current.release();
         }
+    }
 
-        if (!errorsDeleteFiles.isEmpty()) {
-            throw new IOException("Can not delete file " + errorsDeleteFiles.get(0).toString());
+    @Nullable
+    private Map<String, Integer> readLevels() throws IOException {
+        final Path path = new File(base, LEVELS).toPath();
+        if (!Files.exists(path)) {
+            return null;
         }
+        final Map<String, Integer> levels = new HashMap<>();
+        for (final String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            final int space = line.lastIndexOf(' ');
+            levels.put(line.substring(0, space), Integer.parseInt(line.substring(space + 1)));
+        }
+        return levels;
+    }
 
-        memTablePool.start();
-        fileTables.add(new FileTable(dest));
+    /**
+     * Schedule merge of memtables and all SSTables into a single SSTable without tombstones.
+     * It runs in background, reads and writes are served meanwhile. If a merge is already
+     * scheduled and not started yet, it will include everything written before this call.
+     * Failure of the merge, as well as of automatic compaction, is reported by {@link #close()}.
+     */
+    @Override
+    public void compact() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            compactor.execute(() -> {
+                compactionScheduled.set(false);
+                runCompaction(this::compactAll);
+            });
+        }
     }
 
-    private void deleteFile(final List<Path> errorsList, final Path path) {
+    /**
+     * Schedule merges chosen by compaction strategy, if automatic compaction is enabled.
+     * Merged tables may require next merges, so they are run until the strategy has nothing to merge.
+     */
+    private void scheduleCompaction() {
+        if (compactionStrategy == null || !strategyScheduled.compareAndSet(false, true)) {
+            return;
+        }
         try {
-            Files.delete(path);
+            compactor.execute(() -> {
+                strategyScheduled.set(false);
+                runCompaction(() -> {
+                    Compaction compaction = compactionStrategy.select(fileTables);
+                    while (compaction != null) {
+                        compact(compaction);
+                        compaction = compactionStrategy.select(fileTables);
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            // DAO is closed, last memtable is flushed after compactor is stopped
+            strategyScheduled.set(false);
+        }
+    }
+
+    @FunctionalInterface
+    private interface CompactionJob {
+        void run() throws IOException;
+    }
+
+    private void runCompaction(final CompactionJob compaction) {
+        try {
+            compaction.run();
         } catch (IOException e) {
-            errorsList.add(path);
+            compactionFailure.compareAndSet(null, e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Merge SSTables chosen by compaction strategy.
+     * @param compaction merged tables and where to put the result
+     * @throws IOException if write of new tables is failed
+     */
+    private void compact(final Compaction compaction) throws IOException {
+        final Map<Integer, FileTable> inputs = compaction.getInputs();
+        final List<Iterator<Cell>> iterators = new ArrayList<>(inputs.size());
+        long rows = 0;
+        long bytes = 0;
+        int generation = Integer.MIN_VALUE;
+        int oldestGeneration = Integer.MAX_VALUE;
+        for (final Map.Entry<Integer, FileTable> entry : inputs.entrySet()) {
+            final FileTable table = entry.getValue();
+            iterators.add(table.iterator(emptyBuffer));
+            rows += table.rows();
+            bytes += table.sizeInBytes();
+            generation = Math.max(generation, entry.getKey());
+            oldestGeneration = Math.min(oldestGeneration, oldestGenerationOf(table.getFile().getName()));
+        }
+        final boolean dropTombstones = compaction.isDropTombstones();
+        final Iterator<Cell> cells = Iters.mergeNewest(
+                iterators,
+                Cell.KEY_ORDER,
+                Cell.VERSION_ORDER,
+                cell -> dropTombstones && cell.getValue().isRemoved());
+        final Map<Integer, FileTable> outputs = compaction.getLevel() == 0
+                ? writeTable(cells, rows, generation, oldestGeneration)
+                : writeTables(cells, rows, bytes, compaction.getMaxTableSize());
+        replaceTables(tables -> inputs.keySet(), outputs, compaction.getLevel(), 0);
+    }
+
+    /**
+     * Write table of level 0, which takes place of the newest merged table.
+     */
+    private Map<Integer, FileTable> writeTable(
+            final Iterator<Cell> cells,
+            final long rows,
+            final int generation,
+            final int oldestGeneration) throws IOException {
+        final File dest = fileOf(generation, oldestGeneration);
+        FileTable.write(cells, (int) Math.min(rows, Integer.MAX_VALUE), blockSize, dest);
+        return Collections.singletonMap(generation, openWritten(dest));
+    }
+
+    /**
+     * Write tables of a deeper level with new generations, splitting cells into tables of about given size.
+     */
+    private Map<Integer, FileTable> writeTables(
+            final Iterator<Cell> cells,
+            final long rows,
+            final long bytes,
+            final long maxTableSize) throws IOException {
+        final long expectedRows = Math.max(1, Math.min(rows, rows * maxTableSize / Math.max(bytes, 1)));
+        final Map<Integer, FileTable> outputs = new HashMap<>();
+        while (cells.hasNext()) {
+            final long[] written = {0};
+            final Iterator<Cell> part = new AbstractIterator<>() {
+                @Override
+                protected Cell computeNext() {
+                    if (written[0] >= maxTableSize || !cells.hasNext()) {
+                        return endOfData();
+                    }
+                    final Cell cell = cells.next();
+                    written[0] += sizeOf(cell);
+                    return cell;
+                }
+            };
+            final int generation = memTablePool.reserveGeneration();
+            final File dest = fileOf(generation, generation);
+            FileTable.write(part, (int) Math.min(expectedRows, Integer.MAX_VALUE), blockSize, dest);
+            outputs.put(generation, openWritten(dest));
+        }
+        return outputs;
+    }
+
+    /**
+     * Open just written table with its index loaded, so the first read of it does not wait for the load.
+     */
+    private FileTable openWritten(final File file) throws IOException {
+        final FileTable table = new FileTable(file, mmap, blockCache);
+        table.load();
+        return table;
+    }
+
+    private static long sizeOf(final Cell cell) {
+        final Value value = cell.getValue();
+        return Integer.BYTES + cell.getKey().remaining() + Long.BYTES
+                + (value.isRemoved() ? 0 : Integer.BYTES + value.getData().remaining());
+    }
+
+    /**
+     * Put tables merged by compaction instead of replaced tables.
+     * Files of replaced tables are deleted once no view holds them.
+     * @param removed generations of replaced tables, chosen from the current set
+     * @param outputs merged tables by generation
+     * @param level level of merged tables
+     * @param covered generation below which memtables are merged into merged tables or zero
+     */
+    private void replaceTables(
+            final Function<TableSet, Collection<Integer>> removed,
+            final Map<Integer, FileTable> outputs,
+            final int level,
+            final int covered) throws IOException {
+        final Map<Integer, Integer> levels = new HashMap<>();
+        if (level > 0) {
+            for (final int generation : outputs.keySet()) {
+                levels.put(generation, level);
+            }
+        }
+        updateTables(tables -> tables.replace(removed.apply(tables), outputs, levels, covered));
+    }
+
+    /**
+     * Merge memtables and current SSTables into new SSTables without tombstones.
+     * Generation reserved in memtable pool is newer than every merged table,
+     * and the new tables cover all older generations: memtables pending flush are merged into them,
+     * so their tables are dropped. With leveled compaction the new tables are put to the deepest level,
+     * otherwise the new table of level 0 takes the reserved generation.
+     * @throws IOException if write of new table is failed
+     */
+    private void compactAll() throws IOException {
+        // Reserved before memtables are read, so a memtable replaced meanwhile gets a newer generation
+        // than the new tables, as updates it takes after it is read here are not in them
+        final int generation = memTablePool.reserveGeneration();
+        final ReadView view = view();
+        final Map<Integer, FileTable> outputs;
+        final int level;
+        try {
+            final TableSet compacted = view.tables();
+            final Iterator<Cell> cellIterator = view.iterator(emptyBuffer, true);
+            long rows = memTablePool.rows();
+            long bytes = memTablePool.sizeInBytes();
+            for (final FileTable fileTable : compacted.tables().values()) {
+                rows += fileTable.rows();
+                bytes += fileTable.sizeInBytes();
+            }
+            level = levelTableSize > 0 ? Math.max(1, compacted.depth() - 1) : 0;
+            outputs = level == 0
+                    ? writeTable(cellIterator, rows, generation, 0)
+                    : writeTables(cellIterator, rows, bytes, levelTableSize);
+        } finally {
+            view.release();
+        }
+
+        // Compacted tables must not be probed anymore: tombstones are not carried to the new tables
+        replaceTables(
+                tables -> new ArrayList<>(tables.tables().tailMap(generation, false).keySet()),
+                outputs,
+                level,
+                generation);
+    }
+}
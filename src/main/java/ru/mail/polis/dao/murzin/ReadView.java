@@ -0,0 +1,113 @@
+package ru.mail.polis.dao.murzin;
+
+import com.google.common.collect.AbstractIterator;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+
+import ru.mail.polis.dao.Iters;
+
+/**
+ * Memtables and SSTables pinned at once, so several reads see the same tables without locks.
+ * Memtables are taken before SSTables: a memtable flushed in between is then seen twice,
+ * which is harmless, rather than missed. SSTables replaced by compaction later stay readable,
+ * as the view holds a reference to their set until {@link #release()}.
+ * Memtables taking writes may still get updates, which the view sees.
+ */
+final class ReadView {
+    private final List<MemTable> memTables;
+    private final TableSet tables;
+
+    /**
+     * Cells of a view, which holds its own reference to the set of SSTables
+     * until it is read to the end or unreachable, so it outlives the view.
+     */
+    private static final class PinnedIterator extends AbstractIterator<Cell> {
+        private final Iterator<Cell> cells;
+        private final Cleaner.Cleanable pin;
+
+        PinnedIterator(
+                final Iterator<Cell> cells,
+                final TableSet tables) {
+            this.cells = cells;
+            this.pin = tables.retain(this);
+        }
+
+        @Override
+        protected Cell computeNext() {
+            if (cells.hasNext()) {
+                return cells.next();
+            }
+            pin.clean();
+            return endOfData();
+        }
+    }
+
+    /**
+     * Pin tables.
+     * @param memTables memtables, the newest first
+     * @param tables SSTables taken after memtables, which reference is taken by the caller
+     *     and dropped by {@link #release()}
+     */
+    ReadView(
+            @NotNull final List<MemTable> memTables,
+            @NotNull final TableSet tables) {
+        this.memTables = memTables;
+        this.tables = tables;
+    }
+
+    @NotNull
+    TableSet tables() {
+        return tables;
+    }
+
+    /**
+     * Drop the reference to SSTables, the view is not read after that.
+     * Iterators taken before hold their own references.
+     */
+    void release() {
+        tables.release();
+    }
+
+    /**
+     * The newest cell of the key.
+     * @param key key to look for
+     * @return value or tombstone, null if no table has the key
+     * @throws IOException if read of SSTable is failed
+     */
+    @Nullable
+    Cell get(@NotNull final ByteBuffer key) throws IOException {
+        final Cell cell = MemTablePool.get(memTables, key);
+        return cell == null ? tables.get(key) : cell;
+    }
+
+    /**
+     * The newest cells of all tables.
+     * @param from the first key
+     * @param dropTombstones whether removed keys are skipped
+     * @return cells in order of keys
+     * @throws IOException if read of SSTable is failed
+     */
+    @NotNull
+    Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            final boolean dropTombstones) throws IOException {
+        final List<Iterator<Cell>> iterators = tables.iterators(from);
+        for (final MemTable memTable : memTables) {
+            iterators.add(memTable.iterator(from));
+        }
+        return new PinnedIterator(
+                Iters.mergeNewest(
+                        iterators,
+                        Cell.KEY_ORDER,
+                        Cell.VERSION_ORDER,
+                        cell -> dropTombstones && cell.getValue().isRemoved()),
+                tables);
+    }
+}
@@ -0,0 +1,87 @@
+package ru.mail.polis.dao.murzin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Size-tiered choice of SSTables to merge: a tier is formed by tables of not much different size,
+ * and it is merged into one table once it has enough tables.
+ * The merged table is about as large as the whole tier and may join a tier of larger tables,
+ * so every cell is rewritten about once per tier, and the number of tables
+ * grows logarithmically with data size.
+ *
+ * <p>Only tables adjacent in generation order form a tier. The merged table takes the place
+ * of the tier in that order, so point lookups which probe tables from the newest one
+ * still find the newest version of a key first. Tables get larger with age, so a tier
+ * is grown from newer tables to older ones, and an older table joins it if it is not much
+ * larger than the tier. Comparing with the whole tier instead of a single table keeps tiers
+ * from being split when merged tables shrink by overwritten keys.
+ *
+ * <p>Only tables of level 0 are merged, tables of deeper levels left by leveled compaction stay as is.
+ */
+final class SizeTieredCompaction implements CompactionStrategy {
+    // How much older table may be larger than newer tables of its tier
+    private static final double TIER_RATIO = 1.5;
+
+    private final int minTables;
+    private final int maxTables;
+    private final long smallTableSize;
+
+    /**
+     * Create compaction policy.
+     * @param minTables number of tables in a tier which triggers its merge
+     * @param maxTables maximum number of tables merged at once
+     * @param smallTableSize tables not larger than this size in bytes are all in the same tier
+     */
+    SizeTieredCompaction(
+            final int minTables,
+            final int maxTables,
+            final long smallTableSize) {
+        assert minTables > 1;
+        assert maxTables >= minTables;
+        this.minTables = minTables;
+        this.maxTables = maxTables;
+        this.smallTableSize = smallTableSize;
+    }
+
+    /**
+     * Choose full tier. When several tiers are full, the newest one is chosen,
+     * as its tables are the smallest ones and its merge may fill the next tier.
+     * Tombstones are kept, as they shadow values in older tables, unless the tier includes
+     * the oldest table. No older table appears later: tables are flushed in generation order,
+     * and memtables merged by compaction are not flushed at all.
+     */
+    @Nullable
+    @Override
+    public Compaction select(@NotNull final TableSet tables) {
+        final NavigableMap<Integer, FileTable> level0 = tables.level0();
+        final List<Map.Entry<Integer, FileTable>> entries = new ArrayList<>(level0.entrySet());
+        for (int first = 0; first + minTables <= entries.size(); first++) {
+            long tierSize = entries.get(first).getValue().sizeInBytes();
+            int last = first + 1;
+            while (last < entries.size() && last - first < maxTables) {
+                final long size = entries.get(last).getValue().sizeInBytes();
+                if (size > smallTableSize && size > tierSize * TIER_RATIO) {
+                    break;
+                }
+                tierSize += size;
+                last++;
+            }
+            if (last - first >= minTables) {
+                final Map<Integer, FileTable> tier = new HashMap<>();
+                for (final Map.Entry<Integer, FileTable> entry : entries.subList(first, last)) {
+                    tier.put(entry.getKey(), entry.getValue());
+                }
+                final boolean oldest = last == entries.size() && tables.depth() == 1;
+                return new Compaction(tier, 0, oldest, Long.MAX_VALUE);
+            }
+        }
+        return null;
+    }
+}
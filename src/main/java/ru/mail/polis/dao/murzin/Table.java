@@ -1,6 +1,8 @@
 package ru.mail.polis.dao.murzin;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
@@ -9,5 +11,14 @@ public interface Table {
     @NotNull
     Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException;
 
+    /**
+     * Point lookup of the newest cell with given key.
+     * @param key key to look for
+     * @return cell (possibly tombstone) or null if table has no such key
+     * @throws IOException if read is failed
+     */
+    @Nullable
+    Cell get(@NotNull ByteBuffer key) throws IOException;
+
     long sizeInBytes();
 }
\ No newline at end of file
@@ -0,0 +1,349 @@
+package ru.mail.polis.dao.murzin;
+
+import com.google.common.collect.Iterators;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable set of SSTables, replaced as a whole on flush and compaction,
+ * so readers always see a consistent set of tables.
+ *
+ * <p>Tables of level 0 may overlap, they are ordered by generation, the newest first.
+ * Tables of every deeper level have disjoint key ranges and are older than tables of upper levels,
+ * so a point lookup probes at most one table per deeper level.
+ * Without leveled compaction all tables are in level 0.
+ *
+ * <p>A published set is referenced by DAO until it is replaced, and by every view reading it.
+ * The set holds a reference to each of its tables, which is released by the last {@link #release()},
+ * so files of tables replaced by compaction are deleted as soon as no reader is left.
+ */
+final class TableSet {
+    // Releases views which are dropped unclosed, e.g. iterators not read to the end
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    static final TableSet EMPTY = new TableSet(
+            Collections.emptyNavigableMap(),
+            Collections.emptyMap(),
+            Collections.emptyList(),
+            0);
+
+    // All tables by generation in descending order
+    private final NavigableMap<Integer, FileTable> tables;
+    // Levels of tables deeper than level 0 by generation
+    private final Map<Integer, Integer> levels;
+    // Generations of tables of levels 1, 2... by the first key
+    private final List<NavigableMap<ByteBuffer, Integer>> deeper;
+    private final int coveredGeneration;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    private TableSet(
+            final NavigableMap<Integer, FileTable> tables,
+            final Map<Integer, Integer> levels,
+            final List<NavigableMap<ByteBuffer, Integer>> deeper,
+            final int coveredGeneration) {
+        this.tables = tables;
+        this.levels = levels;
+        this.deeper = deeper;
+        this.coveredGeneration = coveredGeneration;
+    }
+
+    /**
+     * Create set of tables.
+     * @param tables tables by generation
+     * @param levels levels of tables deeper than level 0 by generation
+     * @return set of tables
+     * @throws IOException if key range of table can`t be read
+     */
+    @NotNull
+    static TableSet of(
+            @NotNull final Map<Integer, FileTable> tables,
+            @NotNull final Map<Integer, Integer> levels) throws IOException {
+        return EMPTY.replace(Collections.emptySet(), tables, levels, 0);
+    }
+
+    /**
+     * Take a reference to tables of published set.
+     * Called once the set is published, the reference is released along with the set.
+     */
+    void retainTables() {
+        for (final FileTable table : tables.values()) {
+            table.retain();
+        }
+    }
+
+    /**
+     * Take a reference to the set unless it is released already.
+     * @return false if the set is released and its tables must not be read
+     */
+    boolean retain() {
+        while (true) {
+            final int count = refs.get();
+            if (count == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Take a reference to the set, which is released either explicitly or once holder is unreachable.
+     * @param holder object reading the set
+     * @return action which releases the reference
+     * @throws IllegalStateException if the set is released already, so the caller must hold a reference
+     */
+    @NotNull
+    Cleaner.Cleanable retain(@NotNull final Object holder) {
+        if (!retain()) {
+            throw new IllegalStateException("Tables are released");
+        }
+        return CLEANER.register(holder, this::release);
+    }
+
+    /**
+     * Drop a reference to the set. The last one releases the tables,
+     * so tables no other set holds are closed.
+     */
+    void release() {
+        final int count = refs.decrementAndGet();
+        assert count >= 0;
+        if (count == 0) {
+            for (final FileTable table : tables.values()) {
+                table.release();
+            }
+        }
+    }
+
+    /**
+     * All tables.
+     * @return tables by generation in descending order
+     */
+    @NotNull
+    NavigableMap<Integer, FileTable> tables() {
+        return tables;
+    }
+
+    /**
+     * Levels of tables deeper than level 0.
+     * @return levels by generation
+     */
+    @NotNull
+    Map<Integer, Integer> levels() {
+        return levels;
+    }
+
+    /**
+     * Tables of level 0.
+     * @return tables by generation in descending order
+     */
+    @NotNull
+    NavigableMap<Integer, FileTable> level0() {
+        if (levels.isEmpty()) {
+            return tables;
+        }
+        final NavigableMap<Integer, FileTable> level0 = new TreeMap<>(Comparator.reverseOrder());
+        for (final Map.Entry<Integer, FileTable> entry : tables.entrySet()) {
+            if (!levels.containsKey(entry.getKey())) {
+                level0.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return level0;
+    }
+
+    /**
+     * Tables of level deeper than 0.
+     * @param level level starting from 1
+     * @return tables by generation in ascending order of keys
+     */
+    @NotNull
+    Map<Integer, FileTable> level(final int level) {
+        assert level > 0;
+        if (level >= depth()) {
+            return Collections.emptyMap();
+        }
+        final Map<Integer, FileTable> result = new LinkedHashMap<>();
+        for (final int generation : deeper.get(level - 1).values()) {
+            result.put(generation, tables.get(generation));
+        }
+        return result;
+    }
+
+    /**
+     * Number of levels including level 0.
+     * @return one more than the deepest non-empty level
+     */
+    int depth() {
+        return deeper.size() + 1;
+    }
+
+    /**
+     * Level of table.
+     * @param generation generation of table
+     * @return level of table
+     */
+    int levelOf(final int generation) {
+        return levels.getOrDefault(generation, 0);
+    }
+
+    /**
+     * Memtables of generations below this one are merged into tables of the set by compaction,
+     * so they must not be flushed.
+     * @return the least generation which is not merged yet
+     */
+    int coveredGeneration() {
+        return coveredGeneration;
+    }
+
+    /**
+     * Tables of level deeper than 0 which key range intersects with given one.
+     * @param level level starting from 1
+     * @param from the least key of range
+     * @param to the greatest key of range
+     * @return tables by generation
+     * @throws IOException if key range of table can`t be read
+     */
+    @NotNull
+    Map<Integer, FileTable> overlapping(
+            final int level,
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) throws IOException {
+        assert level > 0;
+        final Map<Integer, FileTable> result = new HashMap<>();
+        if (level >= depth()) {
+            return result;
+        }
+        final NavigableMap<ByteBuffer, Integer> tablesOfLevel = deeper.get(level - 1);
+        final ByteBuffer start = tablesOfLevel.floorKey(from);
+        final Map<ByteBuffer, Integer> candidates = start == null
+                ? tablesOfLevel.headMap(to, true)
+                : tablesOfLevel.subMap(start, true, to, true);
+        for (final int generation : candidates.values()) {
+            final FileTable table = tables.get(generation);
+            if (table.lastKey().compareTo(from) >= 0) {
+                result.put(generation, table);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Point lookup which stops at the first table containing the key, either as value or as tombstone.
+     * @param key key to look for
+     * @return the newest cell with the key or null if there is no such key
+     * @throws IOException if read of table is failed
+     */
+    @Nullable
+    Cell get(@NotNull final ByteBuffer key) throws IOException {
+        for (final Map.Entry<Integer, FileTable> entry : tables.entrySet()) {
+            if (!levels.containsKey(entry.getKey())) {
+                final Cell cell = entry.getValue().get(key);
+                if (cell != null) {
+                    return cell;
+                }
+            }
+        }
+        for (final NavigableMap<ByteBuffer, Integer> tablesOfLevel : deeper) {
+            final Map.Entry<ByteBuffer, Integer> candidate = tablesOfLevel.floorEntry(key);
+            if (candidate != null) {
+                final Cell cell = tables.get(candidate.getValue()).get(key);
+                if (cell != null) {
+                    return cell;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Iterators over all tables. Tables of a deeper level are read one after another,
+     * so only one iterator per deeper level is merged.
+     * @param from the least key
+     * @return iterators over cells in ascending order of keys
+     * @throws IOException if read of table is failed
+     */
+    @NotNull
+    List<Iterator<Cell>> iterators(@NotNull final ByteBuffer from) throws IOException {
+        final List<Iterator<Cell>> iterators = new ArrayList<>(tables.size() - levels.size() + deeper.size());
+        for (final Map.Entry<Integer, FileTable> entry : tables.entrySet()) {
+            if (!levels.containsKey(entry.getKey())) {
+                iterators.add(entry.getValue().iterator(from));
+            }
+        }
+        for (final NavigableMap<ByteBuffer, Integer> tablesOfLevel : deeper) {
+            final ByteBuffer start = tablesOfLevel.floorKey(from);
+            final Collection<Integer> tail = start == null
+                    ? tablesOfLevel.values()
+                    : tablesOfLevel.tailMap(start, true).values();
+            iterators.add(Iterators.concat(Iterators.transform(tail.iterator(), generation -> {
+                try {
+                    return tables.get(generation).iterator(from);
+                } catch (IOException e) {
+                    throw new CellReadRuntimeException("Can`t read table", e);
+                }
+            })));
+        }
+        return iterators;
+    }
+
+    /**
+     * Copy of the set with some tables replaced.
+     * @param removed generations of removed tables
+     * @param added added tables by generation
+     * @param addedLevels levels of added tables deeper than level 0 by generation
+     * @param covered generation below which memtables are merged into added tables or zero
+     * @return changed copy
+     * @throws IOException if key range of table can`t be read
+     */
+    @NotNull
+    TableSet replace(
+            @NotNull final Collection<Integer> removed,
+            @NotNull final Map<Integer, FileTable> added,
+            @NotNull final Map<Integer, Integer> addedLevels,
+            final int covered) throws IOException {
+        final NavigableMap<Integer, FileTable> newTables = new TreeMap<>(Comparator.reverseOrder());
+        newTables.putAll(tables);
+        newTables.keySet().removeAll(removed);
+        newTables.putAll(added);
+        final Map<Integer, Integer> newLevels = new HashMap<>(levels);
+        newLevels.keySet().removeAll(removed);
+        newLevels.putAll(addedLevels);
+
+        final List<NavigableMap<ByteBuffer, Integer>> newDeeper = new ArrayList<>();
+        for (final Map.Entry<Integer, Integer> entry : newLevels.entrySet()) {
+            final int level = entry.getValue();
+            while (newDeeper.size() < level) {
+                newDeeper.add(new TreeMap<>());
+            }
+            final ByteBuffer firstKey = newTables.get(entry.getKey()).firstKey();
+            final Integer previous = newDeeper.get(level - 1).put(firstKey, entry.getKey());
+            assert previous == null : "Tables of level " + level + " overlap";
+        }
+        // Levels left empty in between are kept, so the deeper ones keep their numbers
+        while (!newDeeper.isEmpty() && newDeeper.get(newDeeper.size() - 1).isEmpty()) {
+            newDeeper.remove(newDeeper.size() - 1);
+        }
+        return new TableSet(
+                Collections.unmodifiableNavigableMap(newTables),
+                Collections.unmodifiableMap(newLevels),
+                newDeeper,
+                Math.max(coveredGeneration, covered));
+    }
+}
@@ -5,14 +5,15 @@ import java.util.Iterator;
 public class TableToFlush {
     private final int generation;
     private final Iterator<Cell> tableIterator;
+    private final int rows;
     private final boolean poisonPill;
 
     public boolean isPoisonPill() {
         return poisonPill;
     }
 
-    public TableToFlush(final int generation, final Iterator<Cell> tableIterator) {
-        this(generation, tableIterator, false);
+    public TableToFlush(final int generation, final Iterator<Cell> tableIterator, final int rows) {
+        this(generation, tableIterator, rows, false);
     }
 
     /**
@@ -20,11 +21,17 @@ public class TableToFlush {
      *
      * @param generation    generation of file table
      * @param tableIterator iterator through cells of table
+     * @param rows          number of cells in table
      * @param poisonPill    is to be killed flag
      */
-    public TableToFlush(final int generation, Iterator<Cell> tableIterator, final boolean poisonPill) {
+    public TableToFlush(
+            final int generation,
+            final Iterator<Cell> tableIterator,
+            final int rows,
+            final boolean poisonPill) {
         this.generation = generation;
         this.tableIterator = tableIterator;
+        this.rows = rows;
         this.poisonPill = poisonPill;
     }
 
@@ -35,4 +42,8 @@ public class TableToFlush {
     public Iterator<Cell> getTableIterator() {
         return tableIterator;
     }
+
+    public int getRows() {
+        return rows;
+    }
 }
@@ -7,8 +7,6 @@ import java.nio.ByteBuffer;
 public final class Value implements Comparable<Value> {
     private final long ts;
     private final ByteBuffer data;
-    private static long lastTime;
-    private static long additionalTime;
 
     /**
      * Value which hold data with timestamp.
@@ -22,11 +20,11 @@ public final class Value implements Comparable<Value> {
     }
 
     public static Value of(final ByteBuffer data) {
-        return new Value(getCurrentTimeNanos(), data.duplicate());
+        return new Value(HybridClock.now(), data.duplicate());
     }
 
     public static Value tombstone() {
-        return new Value(getCurrentTimeNanos(), null);
+        return new Value(HybridClock.now(), null);
     }
 
     public boolean isRemoved() {
@@ -52,17 +50,4 @@ public final class Value implements Comparable<Value> {
     public long getTimeStamp() {
         return ts;
     }
-
-    /**
-     * Get current time in nanoseconds.
-     * @return current time in nanoseconds
-     */
-    public synchronized static long getCurrentTimeNanos() {
-        final long currentTime = System.currentTimeMillis();
-        if (currentTime != lastTime) {
-            additionalTime = 0;
-            lastTime = currentTime;
-        }
-        return currentTime * 1_000_000 + ++additionalTime;
-    }
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+package ru.mail.polis.dao.murzin;
+
+import com.google.common.collect.Iterators;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.NoSuchElementLite;
+import ru.mail.polis.dao.Snapshot;
+
+/**
+ * Snapshot reading a view of immutable tables.
+ * It holds its own reference to SSTables of the view, which is released on close,
+ * or once the snapshot is unreachable if it is never closed. Its iterators hold their own references,
+ * so tables are released as soon as the snapshot is closed and its iterators are done.
+ */
+final class ViewSnapshot implements Snapshot {
+    private volatile ReadView view;
+    private final Cleaner.Cleanable pin;
+
+    /**
+     * Snapshot of view, which the caller may release after that.
+     * @param view view of immutable tables
+     */
+    ViewSnapshot(@NotNull final ReadView view) {
+        this.view = view;
+        this.pin = view.tables().retain(this);
+    }
+
+    private ReadView view() {
+        final ReadView result = view;
+        if (result == null) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return Iterators.transform(
+                view().iterator(from, true),
+                cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final Cell cell = view().get(key);
+        if (cell == null || cell.getValue().isRemoved()) {
+            throw new NoSuchElementLite("Not found");
+        }
+        return cell.getValue().getData();
+    }
+
+    @Override
+    public void close() {
+        view = null;
+        pin.clean();
+    }
+}
@@ -0,0 +1,53 @@
+package ru.mail.polis.dao.murzin;
+
+/**
+ * Counters of writes held back because memtables are not flushed fast enough.
+ */
+public final class WriteStallStats {
+    private final long stalls;
+    private final long stallMillis;
+    private final long slowdowns;
+    private final long rejections;
+
+    /**
+     * Create snapshot of counters.
+     * @param stalls number of writes blocked until flush queue has room
+     * @param stallMillis total time writes were blocked in milliseconds
+     * @param slowdowns number of writes delayed as flush queue fills up
+     * @param rejections number of writes rejected as flush queue is full
+     */
+    WriteStallStats(
+            final long stalls,
+            final long stallMillis,
+            final long slowdowns,
+            final long rejections) {
+        this.stalls = stalls;
+        this.stallMillis = stallMillis;
+        this.slowdowns = slowdowns;
+        this.rejections = rejections;
+    }
+
+    public long getStalls() {
+        return stalls;
+    }
+
+    public long getStallMillis() {
+        return stallMillis;
+    }
+
+    public long getSlowdowns() {
+        return slowdowns;
+    }
+
+    public long getRejections() {
+        return rejections;
+    }
+
+    @Override
+    public String toString() {
+        return "stalls=" + stalls
+                + ", stallMillis=" + stallMillis
+                + ", slowdowns=" + slowdowns
+                + ", rejections=" + rejections;
+    }
+}
@@ -32,6 +32,10 @@ package ru.mail.polis.service;
  * upsert (create or replace) data by {@code ID}. Returns {@code 201}.</li>
  * <li>{@code DELETE /v0/entity?id=<ID>} --
  * remove data by {@code ID}. Returns {@code 202}.</li>
+ * <li>{@code PUT /v0/batch} --
+ * apply many upserts and removes at once. Body is a sequence of {@code <key size><key><value size><value>},
+ * sizes are big-endian 4-byte integers and value size {@code -1} without value means remove.
+ * Returns {@code 201}, or {@code 400} if body is malformed.</li>
  * </ul>
  *
  * <p>{@code ID} is a non empty char sequence.
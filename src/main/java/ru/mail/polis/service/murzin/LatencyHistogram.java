@@ -0,0 +1,84 @@
+package ru.mail.polis.service.murzin;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Histogram of latencies in nanoseconds, which costs a couple of atomic increments per value.
+ *
+ * <p>Values below {@link #SUB_BUCKETS} have a bucket each, and every greater power of two is split
+ * into {@link #SUB_BUCKETS} linear buckets, so a percentile is off by less than an eighth of it.
+ */
+@ThreadSafe
+public final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Record a latency.
+     * @param nanos latency in nanoseconds, negative ones count as zero
+     */
+    public void record(final long nanos) {
+        counts.incrementAndGet(bucketOf(Math.max(0L, nanos)));
+    }
+
+    /**
+     * Number of recorded latencies.
+     * @return count
+     */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * The least latency which is not exceeded by the given share of recorded ones.
+     * @param quantile share of latencies in (0; 1]
+     * @return the greatest latency of the bucket in nanoseconds, or 0 if nothing is recorded
+     */
+    public long percentile(final double quantile) {
+        if (quantile <= 0.0 || quantile > 1.0) {
+            throw new IllegalArgumentException("Quantile out of (0; 1]: " + quantile);
+        }
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        final long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen > 0 && seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return 0L;
+    }
+
+    static int bucketOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        final long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -2,13 +2,24 @@ package ru.mail.polis.service.murzin;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import one.nio.http.HttpServer;
 import one.nio.http.HttpServerConfig;
@@ -17,13 +28,53 @@ import one.nio.http.Param;
 import one.nio.http.Path;
 import one.nio.http.Request;
 import one.nio.http.Response;
+import one.nio.net.Socket;
 import one.nio.server.AcceptorConfig;
+import ru.mail.polis.Record;
 import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.WriteBatch;
+import ru.mail.polis.dao.WriteRejectedException;
 import ru.mail.polis.service.Service;
 
+/**
+ * Http API of storage. Selector threads only parse requests and write responses, while handlers
+ * which touch storage run on bounded worker pools, one per kind of work, and reply via
+ * {@link HttpSession#sendResponse(Response)}. So slow disk reads do not stall unrelated connections,
+ * writes held by flushes do not take threads from reads, and a request which finds
+ * the queue of its pool full is rejected at once with 503.
+ *
+ * <p>Traffic is observed by latency histograms per endpoint, served on {@code /v0/latency}.
+ * Requests are not logged unless access log is turned on by {@code -Dpolis.access.sampling=N},
+ * then one of about N requests is logged by {@code ru.mail.polis.access} logger,
+ * which is expected to have an asynchronous appender.
+ */
 public final class SimpleHttpServer extends HttpServer implements Service {
     private static final Logger logger = LoggerFactory.getLogger(SimpleHttpServer.class);
+    private static final Logger accessLog = LoggerFactory.getLogger("ru.mail.polis.access");
+    // Zero turns access log off
+    private static final int ACCESS_LOG_SAMPLING = Integer.getInteger("polis.access.sampling", 0);
+    // Names of methods indexed by Request.METHOD_* constants
+    private static final String[] METHODS = {
+            "?", "GET", "POST", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE", "CONNECT", "PATCH"};
+    private static final List<String> ENDPOINTS = List.of("/v0/status", "/v0/entity", "/v0/entities", "/v0/batch");
+    // Time in seconds for clients to back off while storage flushes memtables
+    private static final String RETRY_AFTER = "Retry-After: 1";
+    private static final int WORKERS = Runtime.getRuntime().availableProcessors();
+    private static final int QUEUE_DEPTH = 1024;
+    private static final long STOP_TIMEOUT_SECONDS = 5;
     private final DAO dao;
+    private final ExecutorService reads;
+    private final ExecutorService writes;
+    private final ExecutorService ranges;
+    private final Map<String, LatencyHistogram> latencies = new HashMap<>();
+
+    /**
+     * Storage action which result is sent as response.
+     */
+    @FunctionalInterface
+    private interface Action {
+        Response act() throws IOException;
+    }
 
     /**
      * Http server for DAO implementation.
@@ -32,9 +83,44 @@ public final class SimpleHttpServer extends HttpServer implements Service {
      * @throws IOException if can`t getConfig(port)
      */
     public SimpleHttpServer(final int port, @NotNull final DAO dao) throws IOException {
+        this(port, dao, WORKERS, QUEUE_DEPTH);
+    }
+
+    /**
+     * Http server for DAO implementation with given size of worker pools.
+     * @param port number of port on which server work
+     * @param dao DAO object
+     * @param workers number of threads of every pool
+     * @param queueDepth number of requests waiting for workers of a pool, more are answered with 503
+     * @throws IOException if can`t getConfig(port)
+     */
+    public SimpleHttpServer(
+            final int port,
+            @NotNull final DAO dao,
+            final int workers,
+            final int queueDepth) throws IOException {
         super(getConfig(port));
         this.dao = dao;
-        logger.info("Server is running on port " + port);
+        this.reads = workers("reads", workers, queueDepth);
+        this.writes = workers("writes", workers, queueDepth);
+        this.ranges = workers("ranges", workers, queueDepth);
+        for (final String endpoint : ENDPOINTS) {
+            latencies.put(endpoint, new LatencyHistogram());
+        }
+        logger.info("Server is running on port {}", port);
+    }
+
+    private static ExecutorService workers(
+            final String name,
+            final int threads,
+            final int queueDepth) {
+        return new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth),
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").build());
     }
 
     @Path("/v0/status")
@@ -42,47 +128,288 @@ public final class SimpleHttpServer extends HttpServer implements Service {
         return new Response(Response.OK, Response.EMPTY);
     }
 
+    /**
+     * API for requests on /latency path, which reports latencies of endpoints in microseconds,
+     * a line per endpoint: path, number of requests, 50th, 99th and 99.9th percentiles.
+     * @return Http response
+     */
+    @Path("/v0/latency")
+    public Response latency() {
+        final StringBuilder report = new StringBuilder();
+        for (final String endpoint : ENDPOINTS) {
+            final LatencyHistogram histogram = latencies.get(endpoint);
+            report.append(endpoint)
+                    .append(' ').append(histogram.count())
+                    .append(' ').append(TimeUnit.NANOSECONDS.toMicros(histogram.percentile(0.5)))
+                    .append(' ').append(TimeUnit.NANOSECONDS.toMicros(histogram.percentile(0.99)))
+                    .append(' ').append(TimeUnit.NANOSECONDS.toMicros(histogram.percentile(0.999)))
+                    .append('\n');
+        }
+        return new Response(Response.OK, report.toString().getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     * Latencies of requests to endpoint, from start of handling to the end of response.
+     * @param endpoint path of endpoint, e.g. {@code /v0/entity}
+     * @return histogram of latencies in nanoseconds
+     * @throws IllegalArgumentException if there is no such endpoint
+     */
+    @NotNull
+    public LatencyHistogram getLatency(@NotNull final String endpoint) {
+        final LatencyHistogram histogram = latencies.get(endpoint);
+        if (histogram == null) {
+            throw new IllegalArgumentException("Unknown endpoint " + endpoint);
+        }
+        return histogram;
+    }
+
+    /**
+     * Account request which response is written.
+     * @param request handled request
+     * @param status status code of response
+     * @param nanos time the request took in nanoseconds
+     */
+    void served(
+            @NotNull final Request request,
+            final int status,
+            final long nanos) {
+        final LatencyHistogram histogram = latencies.get(request.getPath());
+        if (histogram != null) {
+            histogram.record(nanos);
+        }
+        if (ACCESS_LOG_SAMPLING > 0
+                && ThreadLocalRandom.current().nextInt(ACCESS_LOG_SAMPLING) == 0
+                && accessLog.isInfoEnabled()) {
+            accessLog.info(
+                    "{} {} {} {}us",
+                    METHODS[request.getMethod()],
+                    request.getURI(),
+                    status,
+                    TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+    }
+
     /**
      * API for requests on /entity path.
      * @param id key
      * @param request Http request
-     * @return Http response
+     * @param session Http session the response is sent to
+     * @throws IOException if response can`t be written
      */
     @Path("/v0/entity")
-    public Response entity(@Param("id") final String id, final Request request) {
+    public void entity(
+            @Param("id") final String id,
+            final Request request,
+            final HttpSession session) throws IOException {
 
         if (id == null || id.isEmpty()) {
-            return new Response(Response.BAD_REQUEST, "Key not found".getBytes(Charsets.UTF_8));
+            session.sendResponse(new Response(Response.BAD_REQUEST, "Key not found".getBytes(Charsets.UTF_8)));
+            return;
         }
 
         final ByteBuffer key = ByteBuffer.wrap(id.getBytes(Charsets.UTF_8));
 
-        logger.info("Request " + request.getMethod() + " with param: " + id);
-
-        try {
-            switch (request.getMethod()) {
-            case Request.METHOD_GET:
+        switch (request.getMethod()) {
+        case Request.METHOD_GET:
+            execute(reads, session, () -> {
                 final ByteBuffer value = dao.get(key);
                 final ByteBuffer duplicate = value.duplicate();
                 final byte[] body = new byte[duplicate.remaining()];
                 duplicate.get(body);
                 return new Response(Response.OK, body);
-            case Request.METHOD_PUT:
+            });
+            break;
+        case Request.METHOD_PUT:
+            execute(writes, session, () -> {
+                if (!dao.acceptsWrites()) {
+                    return unavailable();
+                }
                 dao.upsert(key, ByteBuffer.wrap(request.getBody()));
                 return new Response(Response.CREATED, Response.EMPTY);
-            case Request.METHOD_DELETE:
+            });
+            break;
+        case Request.METHOD_DELETE:
+            execute(writes, session, () -> {
+                if (!dao.acceptsWrites()) {
+                    return unavailable();
+                }
                 dao.remove(key);
                 return new Response(Response.ACCEPTED, Response.EMPTY);
-            default:
-                return new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY);
+            });
+            break;
+        default:
+            session.sendResponse(new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            break;
+        }
+    }
+
+    /**
+     * API for requests on /entities path, which streams records with keys in range [start; end)
+     * as chunks of key, {@code '\n'} and value. Without end the range is unbounded.
+     * @param start the first key
+     * @param end the key after the last one, optional
+     * @param request Http request
+     * @param session Http session the records are streamed to
+     * @throws IOException if response can`t be written
+     */
+    @Path("/v0/entities")
+    public void entities(
+            @Param("start") final String start,
+            @Param("end") final String end,
+            final Request request,
+            final HttpSession session) throws IOException {
+        if (request.getMethod() != Request.METHOD_GET) {
+            session.sendResponse(new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            return;
+        }
+        if (start == null || start.isEmpty() || end != null && end.isEmpty()) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, "Key not found".getBytes(Charsets.UTF_8)));
+            return;
+        }
+        final ByteBuffer from = ByteBuffer.wrap(start.getBytes(Charsets.UTF_8));
+        final ByteBuffer to = end == null ? null : ByteBuffer.wrap(end.getBytes(Charsets.UTF_8));
+        execute(ranges, session, () -> {
+            final Iterator<Record> records;
+            try {
+                records = dao.range(from, to);
+            } catch (IOException | RuntimeException e) {
+                send(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+                return;
+            }
+            try {
+                ((StorageSession) session).stream(records, ranges);
+            } catch (IOException | RuntimeException e) {
+                // The response may be started already, so the client sees the stream cut
+                session.close();
             }
+        });
+    }
+
+    /**
+     * API for requests on /batch path, which applies many upserts and removes at once.
+     * Body is a sequence of mutations: key size ({@code int}), key, value size ({@code int})
+     * and value, where value size {@code -1} without value means remove.
+     * @param request Http request
+     * @param session Http session the response is sent to
+     * @throws IOException if response can`t be written
+     */
+    @Path("/v0/batch")
+    public void batch(
+            final Request request,
+            final HttpSession session) throws IOException {
+        if (request.getMethod() != Request.METHOD_PUT && request.getMethod() != Request.METHOD_POST) {
+            session.sendResponse(new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            return;
+        }
+        final WriteBatch batch;
+        try {
+            batch = parseBatch(request.getBody());
+        } catch (IllegalArgumentException e) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, e.getMessage().getBytes(Charsets.UTF_8)));
+            return;
+        }
+        execute(writes, session, () -> {
+            if (!dao.acceptsWrites()) {
+                return unavailable();
+            }
+            dao.write(batch);
+            return new Response(Response.CREATED, Response.EMPTY);
+        });
+    }
+
+    private static void execute(
+            final ExecutorService executor,
+            final HttpSession session,
+            final Action action) throws IOException {
+        execute(executor, session, () -> {
+            Response response;
+            try {
+                response = action.act();
+            } catch (WriteRejectedException e) {
+                response = unavailable();
+            } catch (IOException e) {
+                response = new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+            } catch (NoSuchElementException e) {
+                response = new Response(Response.NOT_FOUND, "Key not found".getBytes(Charsets.UTF_8));
+            } catch (RuntimeException e) {
+                // E.g. failed read of SSTable, a response is due anyway, or pipelined requests hang
+                response = new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+            }
+            send(session, response);
+        });
+    }
+
+    /**
+     * Run task on worker pool, or respond with 503 at once if its queue is full.
+     */
+    private static void execute(
+            final ExecutorService executor,
+            final HttpSession session,
+            final Runnable task) throws IOException {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            session.sendResponse(unavailable());
+        }
+    }
+
+    private static void send(
+            final HttpSession session,
+            final Response response) {
+        try {
+            session.sendResponse(response);
         } catch (IOException e) {
-            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
-        } catch (NoSuchElementException e) {
-            return new Response(Response.NOT_FOUND, "Key not found".getBytes(Charsets.UTF_8));
+            session.close();
         }
     }
 
+    /**
+     * Response to request held off while storage or workers can`t keep up,
+     * so neither a worker nor the queue of its pool is taken by it.
+     */
+    private static Response unavailable() {
+        final Response response = new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY);
+        response.addHeader(RETRY_AFTER);
+        return response;
+    }
+
+    private static WriteBatch parseBatch(final byte[] body) {
+        final WriteBatch batch = new WriteBatch();
+        if (body == null) {
+            return batch;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        while (buffer.hasRemaining()) {
+            final ByteBuffer key = readChunk(buffer);
+            if (key == null || !key.hasRemaining()) {
+                throw new IllegalArgumentException("Key not found");
+            }
+            final ByteBuffer value = readChunk(buffer);
+            if (value == null) {
+                batch.remove(key);
+            } else {
+                batch.upsert(key, value);
+            }
+        }
+        return batch;
+    }
+
+    private static ByteBuffer readChunk(final ByteBuffer buffer) {
+        if (buffer.remaining() < Integer.BYTES) {
+            throw new IllegalArgumentException("Truncated batch");
+        }
+        final int size = buffer.getInt();
+        if (size == -1) {
+            return null;
+        }
+        if (size < 0 || size > buffer.remaining()) {
+            throw new IllegalArgumentException("Truncated batch");
+        }
+        final ByteBuffer chunk = buffer.slice().limit(size);
+        buffer.position(buffer.position() + size);
+        return chunk;
+    }
+
     private static HttpServerConfig getConfig(final int port) {
         if (port <= 1024 || port >= 65536) {
             throw new IllegalArgumentException("Invalid port");
@@ -95,6 +422,31 @@ public final class SimpleHttpServer extends HttpServer implements Service {
         return config;
     }
 
+    @Override
+    public synchronized void stop() {
+        super.stop();
+        final List<ExecutorService> pools = List.of(reads, writes, ranges);
+        pools.forEach(ExecutorService::shutdown);
+        try {
+            for (final ExecutorService executor : pools) {
+                executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public HttpSession createSession(final Socket socket) {
+        return new StorageSession(socket, this);
+    }
+
+    @Override
+    public void handleRequest(final Request request, final HttpSession session) throws IOException {
+        ((StorageSession) session).started(System.nanoTime());
+        super.handleRequest(request, session);
+    }
+
     @Override
     public void handleDefault(final Request request, final HttpSession session) throws IOException {
         session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
@@ -0,0 +1,176 @@
+package ru.mail.polis.service.murzin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.jetbrains.annotations.NotNull;
+
+import one.nio.http.HttpSession;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.Socket;
+import ru.mail.polis.Record;
+
+/**
+ * Http session which accepts request bodies large enough for batch writes
+ * and streams ranges of records as chunked responses.
+ *
+ * <p>A chunk is written only when the previous ones are sent, and the next chunks follow
+ * when the socket drains, so a range is never buffered as a whole
+ * and a slow client holds neither memory nor a selector thread.
+ * Records are read on the worker pool of ranges rather than on the selector thread,
+ * which only reports that the socket drained.
+ *
+ * <p>Every response is accounted by the server with the time since its request was taken
+ * for handling, a streamed one when its last chunk is written.
+ */
+final class StorageSession extends HttpSession {
+    private static final int MAX_REQUEST_BODY_LENGTH = 4 * 1024 * 1024;
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int STREAMED_STATUS = 200;
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final SimpleHttpServer service;
+    // Records left to stream in response to the handled request, guarded by this
+    private Iterator<Record> records;
+    private Executor executor;
+    // Whether reading of the next chunks is queued to the executor
+    private boolean resuming;
+    private boolean keepAlive;
+    // Time the handled request was taken by System.nanoTime(), guarded by this
+    private long started;
+
+    StorageSession(final Socket socket, final SimpleHttpServer server) {
+        super(socket, server);
+        this.service = server;
+    }
+
+    synchronized void started(final long nanos) {
+        this.started = nanos;
+    }
+
+    @Override
+    public synchronized void sendResponse(final Response response) throws IOException {
+        final Request request = handling;
+        // Accounted before the response takes a pipelined request for handling
+        if (request != null) {
+            service.served(request, response.getStatus(), System.nanoTime() - started);
+        }
+        super.sendResponse(response);
+    }
+
+    @Override
+    protected int getMaxRequestBodyLength() {
+        return MAX_REQUEST_BODY_LENGTH;
+    }
+
+    /**
+     * Respond to the handled request with records, each as a chunk of key, {@code '\n'} and value.
+     * @param records records to stream
+     * @param executor executor which reads the next chunks when the socket drains
+     * @throws IOException if response can`t be written
+     */
+    synchronized void stream(
+            @NotNull final Iterator<Record> records,
+            @NotNull final Executor executor) throws IOException {
+        final Request request = handling;
+        if (request == null) {
+            throw new IOException("Out of order response");
+        }
+        final String connection = request.getHeader("Connection: ");
+        keepAlive = request.isHttp11()
+                ? !"close".equalsIgnoreCase(connection)
+                : "Keep-Alive".equalsIgnoreCase(connection);
+        final Response response = new Response(Response.OK);
+        response.addHeader("Transfer-Encoding: chunked");
+        response.addHeader(keepAlive ? "Connection: Keep-Alive" : "Connection: close");
+        writeResponse(response, false);
+        this.records = records;
+        this.executor = executor;
+        next();
+    }
+
+    @Override
+    protected void processWrite() throws Exception {
+        super.processWrite();
+        resume();
+    }
+
+    private synchronized void resume() throws IOException {
+        if (records == null || queueHead != null || resuming) {
+            return;
+        }
+        resuming = true;
+        try {
+            executor.execute(this::resumed);
+        } catch (RejectedExecutionException e) {
+            // Workers are saturated or stopped, so the selector reads the chunks itself
+            resuming = false;
+            next();
+        }
+    }
+
+    private synchronized void resumed() {
+        resuming = false;
+        try {
+            next();
+        } catch (IOException | RuntimeException e) {
+            // The response is started, so the client can only see the stream cut
+            close();
+        }
+    }
+
+    private synchronized void next() throws IOException {
+        if (records == null) {
+            return;
+        }
+        // Stop as soon as the socket does not take more, the rest is written when it drains
+        while (records.hasNext() && queueHead == null) {
+            final byte[] chunk = chunkOf(records.next());
+            write(chunk, 0, chunk.length);
+        }
+        if (!records.hasNext()) {
+            records = null;
+            write(LAST_CHUNK, 0, LAST_CHUNK.length);
+            finish();
+        }
+    }
+
+    private static byte[] chunkOf(final Record record) {
+        final ByteBuffer key = record.getKey();
+        final ByteBuffer value = record.getValue();
+        final int size = key.remaining() + 1 + value.remaining();
+        final byte[] length = Integer.toHexString(size).getBytes(StandardCharsets.US_ASCII);
+        final byte[] chunk = new byte[length.length + CRLF.length + size + CRLF.length];
+        final ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        buffer.put(length).put(CRLF);
+        buffer.put(key.duplicate()).put((byte) '\n').put(value.duplicate());
+        buffer.put(CRLF);
+        return chunk;
+    }
+
+    /**
+     * Complete the response and go on with pipelined requests, as {@link #sendResponse(Response)} does.
+     */
+    private void finish() throws IOException {
+        final Request request = handling;
+        if (request != null) {
+            service.served(request, STREAMED_STATUS, System.nanoTime() - started);
+        }
+        server.incRequestsProcessed();
+        if (!keepAlive) {
+            scheduleClose();
+        }
+        final Request next = pipeline.pollFirst();
+        handling = next;
+        if (next == FIN) {
+            scheduleClose();
+        } else if (next != null) {
+            server.handleRequest(next, this);
+        }
+    }
+}
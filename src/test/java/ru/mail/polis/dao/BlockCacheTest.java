@@ -0,0 +1,81 @@
+package ru.mail.polis.dao;
+
+import com.google.common.cache.CacheStats;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.murzin.DAOConfig;
+import ru.mail.polis.dao.murzin.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link DAO} reading SSTables through shared block cache.
+ */
+class BlockCacheTest extends TestBase {
+    @Test
+    void repeatedGets(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                map.put(key, value);
+            }
+        }
+
+        try (MyDAO dao = (MyDAO) DAOFactory.create(data)) {
+            for (int i = 0; i < 2; i++) {
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : map.entrySet()) {
+                    assertEquals(entry.getValue(), dao.get(entry.getKey()));
+                }
+            }
+            final CacheStats stats = dao.getBlockCacheStats();
+            assertNotNull(stats);
+            assertTrue(stats.missCount() > 0);
+            assertTrue(stats.hitCount() >= map.size());
+        }
+    }
+
+    @Test
+    void lazyOpenReadsNoBlocks(@TempDir File data) throws IOException {
+        final DAOConfig config = new DAOConfig();
+        config.compactionStyle = DAOConfig.CompactionStyle.LEVELED;
+        config.compactionThreshold = 0;
+        config.levelBaseSize = 64 * 1024;
+        final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < 1000; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                map.put(key, value);
+            }
+            // Tables of level 1
+            dao.compact();
+        }
+
+        // Key ranges of deeper levels are known from footers, so no block is read before the first get
+        config.lazyOpen = true;
+        config.warmUpThreads = 0;
+        try (MyDAO dao = (MyDAO) DAOFactory.create(data, config)) {
+            final CacheStats opened = dao.getBlockCacheStats();
+            assertNotNull(opened);
+            assertEquals(0, opened.requestCount());
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : map.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            final CacheStats stats = dao.getBlockCacheStats();
+            assertNotNull(stats);
+            assertTrue(stats.missCount() > 0);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.murzin.DAOConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.mail.polis.dao.DAOAssertions.assertContents;
+import static ru.mail.polis.dao.DAOAssertions.assertRecords;
+
+/**
+ * Tests for {@link DAO} reading SSTables at boundaries of blocks,
+ * and reading SSTables of legacy layout with offset of every row.
+ */
+class BlockFormatTest extends TestBase {
+    private static final int BLOCK_SIZE = 256;
+    // Records compared after every seek
+    private static final int SEEK_RECORDS = 3;
+
+    private static DAOConfig config(final boolean mmap) {
+        final DAOConfig config = new DAOConfig();
+        config.blockSize = BLOCK_SIZE;
+        config.mmap = mmap;
+        return config;
+    }
+
+    private static ByteBuffer concat(
+            final ByteBuffer prefix,
+            final ByteBuffer suffix) {
+        return ByteBuffer.allocate(prefix.remaining() + suffix.remaining())
+                .put(prefix.duplicate())
+                .put(suffix.duplicate())
+                .flip();
+    }
+
+    private static int randomSize(final int maxSize) {
+        return 1 + ThreadLocalRandom.current().nextInt(maxSize);
+    }
+
+    /**
+     * Groups of keys with common prefixes, so separators of blocks differ from their first keys.
+     */
+    private static NavigableMap<ByteBuffer, ByteBuffer> records(final int groups) {
+        final NavigableMap<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        for (int i = 0; i < groups; i++) {
+            final ByteBuffer prefix = randomBuffer(randomSize(12));
+            for (int j = 0; j < 10; j++) {
+                records.put(concat(prefix, randomBuffer(randomSize(8))), randomBuffer(randomSize(100)));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Seek to every key, right after it and to its prefix, which may be in previous block.
+     */
+    private static void assertSeeks(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (final ByteBuffer key : expected.keySet()) {
+            final List<ByteBuffer> seeks = new ArrayList<>(3);
+            seeks.add(key);
+            seeks.add(concat(key, ByteBuffer.allocate(1)));
+            seeks.add(key.duplicate().limit(key.limit() - 1));
+            for (final ByteBuffer from : seeks) {
+                assertRecords(
+                        expected.tailMap(from, true).entrySet().iterator(),
+                        dao.iterator(from),
+                        SEEK_RECORDS);
+            }
+        }
+    }
+
+    @Test
+    void keysAcrossBlocks(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> records = records(200);
+        final List<ByteBuffer> removed = new ArrayList<>();
+        try (DAO dao = DAOFactory.create(data, config(false))) {
+            int i = 0;
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : records.entrySet()) {
+                if (i++ % 7 == 0) {
+                    dao.remove(entry.getKey());
+                    removed.add(entry.getKey());
+                } else {
+                    dao.upsert(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        records.keySet().removeAll(removed);
+
+        for (final boolean mmap : new boolean[] {false, true}) {
+            try (DAO dao = DAOFactory.create(data, config(mmap))) {
+                assertContents(dao, records);
+                assertSeeks(dao, records);
+                for (final ByteBuffer key : removed) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    void cellsLargerThanBlock(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> records = records(20);
+        // Values of several blocks, the last one larger than output buffer of writer
+        final int[] sizes = {BLOCK_SIZE, 4 * BLOCK_SIZE, 64 * 1024, 2 * 1024 * 1024};
+        final List<ByteBuffer> keys = new ArrayList<>(records.keySet());
+        for (int i = 0; i < sizes.length; i++) {
+            records.put(keys.get(keys.size() * i / sizes.length), randomBuffer(sizes[i]));
+        }
+        // Key larger than block
+        records.put(randomBuffer(2 * BLOCK_SIZE), randomBuffer(randomSize(100)));
+        try (DAO dao = DAOFactory.create(data, config(false))) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : records.entrySet()) {
+                dao.upsert(entry.getKey(), entry.getValue());
+            }
+        }
+
+        for (final boolean mmap : new boolean[] {false, true}) {
+            try (DAO dao = DAOFactory.create(data, config(mmap))) {
+                assertContents(dao, records);
+                assertSeeks(dao, records);
+            }
+        }
+    }
+
+    /**
+     * Write table of legacy layout: cells, offset of every cell and number of rows.
+     * A cell is key size, key, timestamp, value size and value, tombstone has negative timestamp and no value.
+     */
+    private static void writeLegacy(
+            final File file,
+            final NavigableMap<ByteBuffer, ByteBuffer> cells,
+            final long timeStamp) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final List<Integer> offsets = new ArrayList<>(cells.size());
+        for (final Map.Entry<ByteBuffer, ByteBuffer> cell : cells.entrySet()) {
+            offsets.add(out.size());
+            final ByteBuffer key = cell.getKey().duplicate();
+            out.writeInt(key.remaining());
+            while (key.hasRemaining()) {
+                out.write(key.get());
+            }
+            if (cell.getValue() == null) {
+                out.writeLong(-timeStamp);
+            } else {
+                final ByteBuffer value = cell.getValue().duplicate();
+                out.writeLong(timeStamp);
+                out.writeInt(value.remaining());
+                while (value.hasRemaining()) {
+                    out.write(value.get());
+                }
+            }
+        }
+        for (final int offset : offsets) {
+            out.writeLong(offset);
+        }
+        out.writeLong(cells.size());
+        out.flush();
+        Files.write(file.toPath(), bytes.toByteArray());
+    }
+
+    @Test
+    void legacyLayout(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> records = records(50);
+        final NavigableMap<ByteBuffer, ByteBuffer> older = new TreeMap<>(records);
+        final NavigableMap<ByteBuffer, ByteBuffer> newer = new TreeMap<>();
+        final List<ByteBuffer> keys = new ArrayList<>(records.keySet());
+        for (int i = 0; i < keys.size(); i += 5) {
+            // Removed by the newer table
+            newer.put(keys.get(i), null);
+            records.remove(keys.get(i));
+        }
+        for (int i = 1; i < keys.size(); i += 5) {
+            final ByteBuffer value = randomBuffer(randomSize(100));
+            newer.put(keys.get(i), value);
+            records.put(keys.get(i), value);
+        }
+        // Tables of version without manifest are found by their names
+        writeLegacy(new File(data, "1_SSTable.dat"), older, 1);
+        writeLegacy(new File(data, "2_SSTable.dat"), newer, 2);
+
+        for (final boolean mmap : new boolean[] {false, true}) {
+            try (DAO dao = DAOFactory.create(data, config(mmap))) {
+                assertContents(dao, records);
+                assertSeeks(dao, records);
+            }
+        }
+
+        // Updates win over legacy tables, which are then merged into a table of block format
+        final ByteBuffer updated = keys.get(2);
+        try (DAO dao = DAOFactory.create(data, config(false))) {
+            final ByteBuffer value = randomValueBuffer();
+            dao.upsert(updated, value);
+            records.put(updated, value);
+            assertEquals(value, dao.get(updated));
+            dao.compact();
+        }
+        try (DAO dao = DAOFactory.create(data, config(false))) {
+            assertContents(dao, records);
+        }
+        assertFalse(new File(data, "1_SSTable.dat").exists());
+        assertFalse(new File(data, "2_SSTable.dat").exists());
+    }
+}
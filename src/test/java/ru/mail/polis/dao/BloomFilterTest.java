@@ -0,0 +1,113 @@
+package ru.mail.polis.dao;
+
+import com.google.common.cache.CacheStats;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.murzin.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link DAO} skipping SSTables by their Bloom filters.
+ * Blocks read by lookups are counted by the block cache.
+ */
+class BloomFilterTest extends TestBase {
+    private static final int KEYS = 10_000;
+
+    private static Map<ByteBuffer, ByteBuffer> write(final File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> records = new HashMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                records.put(key, value);
+            }
+        }
+        return records;
+    }
+
+    private static List<ByteBuffer> absentKeys() {
+        final List<ByteBuffer> keys = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            keys.add(randomKeyBuffer());
+        }
+        return keys;
+    }
+
+    private static File[] filters(final File data) {
+        final File[] filters = data.listFiles((dir, name) -> name.endsWith(".bloom"));
+        assertNotNull(filters);
+        return filters;
+    }
+
+    /**
+     * Look up present and absent keys in reopened DAO.
+     * @return number of blocks read by lookups of absent keys
+     */
+    private static long lookups(
+            final File data,
+            final Map<ByteBuffer, ByteBuffer> records,
+            final List<ByteBuffer> absent) throws IOException {
+        try (MyDAO dao = (MyDAO) DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> record : records.entrySet()) {
+                assertEquals(record.getValue(), dao.get(record.getKey()));
+            }
+            final CacheStats before = dao.getBlockCacheStats();
+            assertNotNull(before);
+            for (final ByteBuffer key : absent) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+            final CacheStats after = dao.getBlockCacheStats();
+            assertNotNull(after);
+            return after.minus(before).requestCount();
+        }
+    }
+
+    @Test
+    void noFalseNegatives(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> records = write(data);
+        assertTrue(filters(data).length > 0);
+        final List<ByteBuffer> absent = absentKeys();
+
+        // Filters are read again on every open, and about 1% of absent keys pass each of them
+        for (int i = 0; i < 2; i++) {
+            final long probes = lookups(data, records, absent);
+            assertTrue(probes < absent.size() / 10, "Probes " + probes);
+        }
+    }
+
+    @Test
+    void tableWithoutFilter(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> records = write(data);
+        for (final File filter : filters(data)) {
+            Files.delete(filter.toPath());
+        }
+        final List<ByteBuffer> absent = absentKeys();
+
+        // Table written before filters were introduced is searched for every key
+        assertTrue(lookups(data, records, absent) >= absent.size());
+    }
+
+    @Test
+    void damagedFilter(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> records = write(data);
+        for (final File filter : filters(data)) {
+            Files.write(filter.toPath(), new byte[] {1, 2, 3, 4});
+        }
+        final List<ByteBuffer> absent = absentKeys();
+
+        assertTrue(lookups(data, records, absent) >= absent.size());
+    }
+}
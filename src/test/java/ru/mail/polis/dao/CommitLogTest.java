@@ -0,0 +1,148 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.murzin.DAOConfig;
+import ru.mail.polis.dao.murzin.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link DAO} recovering not flushed updates from commit log after crash.
+ */
+class CommitLogTest extends TestBase {
+    private static final int KEYS = 1000;
+
+    private static ByteBuffer buffer(final String prefix, final int i) {
+        return ByteBuffer.wrap((prefix + i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write updates and halt JVM without closing DAO, so nothing is flushed to SSTables.
+     * @param args data directory and durability
+     * @throws IOException if DAO can`t be created
+     */
+    public static void main(final String[] args) throws IOException {
+        final DAOConfig config = new DAOConfig();
+        config.durability = DAOConfig.Durability.valueOf(args[1]);
+        final DAO dao = DAOFactory.create(new File(args[0]), config);
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(buffer("key", i), buffer("value", i));
+        }
+        dao.remove(buffer("key", 0));
+        Runtime.getRuntime().halt(0);
+    }
+
+    private static void crash(
+            final File data,
+            final DAOConfig.Durability durability) throws Exception {
+        final Process writer = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-Xmx256m",
+                "-cp", System.getProperty("java.class.path"),
+                CommitLogTest.class.getName(),
+                data.getPath(),
+                durability.name())
+                .inheritIO()
+                .start();
+        assertTrue(writer.waitFor(1, TimeUnit.MINUTES));
+        assertEquals(0, writer.exitValue());
+    }
+
+    private static void crashAndRecover(
+            final File data,
+            final DAOConfig.Durability durability) throws Exception {
+        crash(data, durability);
+
+        final DAOConfig config = new DAOConfig();
+        config.durability = durability;
+        try (DAO dao = DAOFactory.create(data, config)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(buffer("key", 0)));
+            for (int i = 1; i < KEYS; i++) {
+                assertEquals(buffer("value", i), dao.get(buffer("key", i)));
+            }
+        }
+
+        // Replayed updates are flushed on close and log is not replayed twice
+        try (DAO dao = DAOFactory.create(data, config)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(buffer("key", 0)));
+            assertEquals(buffer("value", KEYS - 1), dao.get(buffer("key", KEYS - 1)));
+        }
+    }
+
+    @Test
+    void sync(@TempDir File data) throws Exception {
+        crashAndRecover(data, DAOConfig.Durability.SYNC);
+    }
+
+    @Test
+    void group(@TempDir File data) throws Exception {
+        crashAndRecover(data, DAOConfig.Durability.GROUP);
+    }
+
+    @Test
+    void none(@TempDir File data) throws Exception {
+        crashAndRecover(data, DAOConfig.Durability.NONE);
+    }
+
+    @Test
+    void replayBypassesWriteStall(@TempDir File data) throws Exception {
+        for (final DAOConfig.WriteStall writeStall : DAOConfig.WriteStall.values()) {
+            final File dir = new File(data, writeStall.name());
+            assertTrue(dir.mkdir());
+            crash(dir, DAOConfig.Durability.GROUP);
+
+            // Replayed updates fill many memtables, which wait for the only flusher
+            final DAOConfig config = new DAOConfig();
+            config.flushThreshold = 1024;
+            config.flushThreads = 1;
+            config.flushQueueDepth = 1;
+            config.writeStall = writeStall;
+            try (MyDAO dao = (MyDAO) DAOFactory.create(dir, config)) {
+                assertEquals(0, dao.getWriteStallStats().getRejections());
+                assertEquals(0, dao.getWriteStallStats().getSlowdowns());
+                assertThrows(NoSuchElementException.class, () -> dao.get(buffer("key", 0)));
+                for (int i = 1; i < KEYS; i++) {
+                    assertEquals(buffer("value", i), dao.get(buffer("key", i)));
+                }
+            }
+        }
+    }
+
+    private static boolean hasThreadsOfDAO() {
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && (thread.getName().startsWith("flusher-") || thread.getName().equals("compactor"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    void failedOpenLeaksNoThreads(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+        assertFalse(hasThreadsOfDAO());
+
+        final File stray = new File(data, "stray_CommitLog.log");
+        assertTrue(stray.createNewFile());
+        assertThrows(NumberFormatException.class, () -> DAOFactory.create(data));
+        assertFalse(hasThreadsOfDAO());
+
+        assertTrue(stray.delete());
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+}
@@ -19,14 +19,22 @@ package ru.mail.polis.dao;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import ru.mail.polis.Files;
+import ru.mail.polis.Record;
 import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.murzin.DAOConfig;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -131,4 +139,146 @@ class CompactionTest extends TestBase {
         // Heuristic
         assertTrue(size < valueSize);
     }
+
+    @Test
+    void iterateWhileCompacting(@TempDir File data) throws IOException {
+        final int keyCount = 1000;
+        final Collection<ByteBuffer> keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(randomKeyBuffer());
+        }
+
+        // Several SSTables
+        for (int round = 0; round < 10; round++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                dao.upsert(randomKeyBuffer(), randomBuffer(KEY_LENGTH));
+            }
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                dao.upsert(key, key);
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            // Iterator started before compaction still reads replaced tables
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            dao.compact();
+            for (final ByteBuffer key : keys) {
+                assertEquals(key, dao.get(key));
+            }
+            int count = 0;
+            while (iterator.hasNext()) {
+                iterator.next();
+                count++;
+            }
+            assertEquals(keyCount + 10, count);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                assertEquals(key, dao.get(key));
+            }
+        }
+    }
+
+    @Test
+    void sizeTiered(@TempDir File data) throws IOException {
+        final int keyCount = 10_000;
+        final int rounds = 3;
+        final DAOConfig config = new DAOConfig();
+        config.flushThreshold = 64 * 1024;
+        config.compactionThreshold = 4;
+
+        final List<ByteBuffer> keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(randomKeyBuffer());
+        }
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < keyCount; i++) {
+                    final ByteBuffer key = keys.get(i);
+                    // Tombstones in newer tables shadow values in older ones
+                    if (round > 0 && i % 3 == round) {
+                        dao.remove(key);
+                        expected.remove(key);
+                    } else {
+                        final ByteBuffer value = randomValueBuffer();
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    }
+                }
+            }
+        }
+
+        // Dozens of flushed tables are merged into a few
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith("_SSTable.dat"));
+        assertNotNull(tables);
+        assertTrue(tables.length < 16, "Tables left: " + tables.length);
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (final ByteBuffer key : keys) {
+                final ByteBuffer value = expected.get(key);
+                if (value == null) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                } else {
+                    assertEquals(value, dao.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    void leveled(@TempDir File data) throws IOException {
+        final int keyCount = 10_000;
+        final int rounds = 3;
+        final DAOConfig config = new DAOConfig();
+        config.flushThreshold = 64 * 1024;
+        config.compactionStyle = DAOConfig.CompactionStyle.LEVELED;
+        config.levelBaseSize = 512 * 1024;
+
+        final List<ByteBuffer> keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(randomKeyBuffer());
+        }
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < keyCount; i++) {
+                    final ByteBuffer key = keys.get(i);
+                    if (round > 0 && i % 3 == round) {
+                        dao.remove(key);
+                        expected.remove(key);
+                    } else {
+                        final ByteBuffer value = randomValueBuffer();
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    }
+                }
+            }
+        }
+
+        // Levels are kept after restart, and tables of levels are read correctly with any strategy
+        for (final DAOConfig.CompactionStyle style : DAOConfig.CompactionStyle.values()) {
+            config.compactionStyle = style;
+            try (DAO dao = DAOFactory.create(data, config)) {
+                for (final ByteBuffer key : keys) {
+                    final ByteBuffer value = expected.get(key);
+                    if (value == null) {
+                        assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                    } else {
+                        assertEquals(value, dao.get(key));
+                    }
+                }
+                final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                    final Record record = records.next();
+                    assertEquals(entry.getKey(), record.getKey());
+                    assertEquals(entry.getValue(), record.getValue());
+                }
+                assertFalse(records.hasNext());
+            }
+        }
+    }
 }
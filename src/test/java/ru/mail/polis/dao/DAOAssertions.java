@@ -0,0 +1,92 @@
+package ru.mail.polis.dao;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.murzin.DAOConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks of records read from {@link DAO} and configs shared by its tests.
+ */
+final class DAOAssertions {
+    private DAOAssertions() {
+        // Not instantiable
+    }
+
+    /**
+     * Config of DAO flushing memtables of the given size, which is much less than the default one.
+     * @param flushThreshold size of memtable in bytes
+     * @return config with the other settings by default
+     */
+    static DAOConfig config(final int flushThreshold) {
+        final DAOConfig config = new DAOConfig();
+        config.flushThreshold = flushThreshold;
+        return config;
+    }
+
+    /**
+     * Check that every expected value is read by its key.
+     * @param dao storage to read
+     * @param expected values by keys
+     * @throws IOException if read is failed
+     */
+    static void assertValues(
+            final DAO dao,
+            final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+    }
+
+    /**
+     * Check that records are the expected ones up to the limit,
+     * and that there are no more records once the expected ones are over.
+     * @param expected expected entries in ascending order of keys
+     * @param actual records read
+     * @param limit number of records to check
+     */
+    static void assertRecords(
+            final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> expected,
+            final Iterator<Record> actual,
+            final int limit) {
+        for (int i = 0; i < limit && expected.hasNext(); i++) {
+            final Map.Entry<ByteBuffer, ByteBuffer> entry = expected.next();
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        if (!expected.hasNext()) {
+            assertFalse(actual.hasNext());
+        }
+    }
+
+    /**
+     * Check that records are exactly the expected ones.
+     * @param expected expected values by keys
+     * @param actual records read
+     */
+    static void assertRecords(
+            final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> actual) {
+        assertRecords(expected.entrySet().iterator(), actual, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Check that the storage contains exactly the expected records, both by keys and by iterator.
+     * @param dao storage to read
+     * @param expected values by keys
+     * @throws IOException if read is failed
+     */
+    static void assertContents(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        assertValues(dao, expected);
+        assertRecords(expected, dao.iterator(ByteBuffer.allocate(0)));
+    }
+}
@@ -0,0 +1,219 @@
+package ru.mail.polis.dao;
+
+import com.google.common.collect.Iterators;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.murzin.DAOConfig;
+import ru.mail.polis.dao.murzin.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.mail.polis.dao.DAOAssertions.assertValues;
+
+/**
+ * Tests for flushes of {@link DAO} by several flushers and for write stall policies.
+ */
+class FlushTest extends TestBase {
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+    private static DAOConfig config(
+            final int flushThreads,
+            final DAOConfig.WriteStall writeStall) {
+        final DAOConfig config = DAOAssertions.config(FLUSH_THRESHOLD);
+        config.flushThreads = flushThreads;
+        config.flushQueueDepth = 1;
+        config.writeStall = writeStall;
+        return config;
+    }
+
+    @Test
+    void parallelFlushers(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        for (final DAOConfig.WriteStall writeStall : DAOConfig.WriteStall.values()) {
+            if (writeStall == DAOConfig.WriteStall.REJECT) {
+                continue;
+            }
+            try (DAO dao = DAOFactory.create(data, config(4, writeStall))) {
+                for (int i = 0; i < 10_000; i++) {
+                    final ByteBuffer key = randomKeyBuffer();
+                    final ByteBuffer value = randomValueBuffer();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+                assertValues(dao, expected);
+            }
+        }
+        try (DAO dao = DAOFactory.create(data, config(1, DAOConfig.WriteStall.BLOCK))) {
+            assertValues(dao, expected);
+        }
+    }
+
+    @Test
+    void readsDuringFlushes(@TempDir File data) throws Exception {
+        final int count = 20_000;
+        final AtomicInteger written = new AtomicInteger();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data, config(4, DAOConfig.WriteStall.BLOCK))) {
+            final Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        dao.upsert(keyOf(i), value);
+                        written.set(i + 1);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            writer.start();
+            while (written.get() < count) {
+                // Every acknowledged key is seen, wherever it is while memtables are flushed
+                final int acknowledged = written.get();
+                final List<ByteBuffer> keys = new ArrayList<>();
+                for (int i = 0; i < acknowledged; i += 97) {
+                    keys.add(keyOf(i));
+                }
+                assertEquals(keys.size(), dao.getAll(keys).size());
+                assertTrue(Iterators.size(dao.iterator(ByteBuffer.allocate(0))) >= acknowledged);
+            }
+            writer.join();
+        }
+    }
+
+    @Test
+    void closeWithFullQueue(@TempDir File data) {
+        assertTimeoutPreemptively(Duration.ofMinutes(1), () -> {
+            for (int attempt = 0; attempt < 10; attempt++) {
+                final MyDAO dao = (MyDAO) DAOFactory.create(data, config(1, DAOConfig.WriteStall.BLOCK));
+                final Thread writer = new Thread(() -> {
+                    try {
+                        while (true) {
+                            dao.upsert(randomKeyBuffer(), randomValueBuffer());
+                        }
+                    } catch (IOException | IllegalStateException e) {
+                        // Closed
+                    }
+                });
+                writer.start();
+                // The writer waits for room in the queue while the flusher writes a table
+                while (dao.getWriteStallStats().getStalls() == 0) {
+                    Thread.onSpinWait();
+                }
+                dao.close();
+                writer.join();
+            }
+        });
+    }
+
+    /**
+     * Directory in place of SSTable of the first flushed memtable, so its flush fails until it is removed.
+     */
+    private static File blockFirstFlush(final File data) throws IOException {
+        // Manifest is written, so the directory is not taken for a table of previous version
+        DAOFactory.create(data, config(2, DAOConfig.WriteStall.BLOCK)).close();
+        final File blocker = new File(data, "1_SSTable.dat");
+        assertTrue(blocker.mkdir());
+        assertTrue(new File(blocker, "file").createNewFile());
+        return blocker;
+    }
+
+    private static void deleteBlocker(final File blocker) {
+        assertTrue(new File(blocker, "file").delete());
+        assertTrue(blocker.delete());
+    }
+
+    /**
+     * Overwrite keys, so the first memtable is full of older values and the second one is full of newer ones.
+     */
+    private static Map<ByteBuffer, ByteBuffer> overwrite(final DAO dao) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < FLUSH_THRESHOLD / 1024 + 10; i++) {
+            keys.add(randomKeyBuffer());
+        }
+        for (final ByteBuffer key : keys) {
+            dao.upsert(key, randomValueBuffer());
+        }
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        for (final ByteBuffer key : keys) {
+            final ByteBuffer value = randomValueBuffer();
+            dao.upsert(key, value);
+            expected.put(key, value);
+        }
+        return expected;
+    }
+
+    @Test
+    void retriedFlush(@TempDir File data) throws Exception {
+        final File blocker = blockFirstFlush(data);
+        final Map<ByteBuffer, ByteBuffer> expected;
+        try (DAO dao = DAOFactory.create(data, config(2, DAOConfig.WriteStall.BLOCK))) {
+            expected = overwrite(dao);
+            // The second table is written meanwhile, but it is not published before the first one,
+            // which is still read and would hide newer values
+            Thread.sleep(1000);
+            assertValues(dao, expected);
+            deleteBlocker(blocker);
+        }
+        assertTrue(blocker.isFile());
+        try (DAO dao = DAOFactory.create(data)) {
+            assertValues(dao, expected);
+        }
+    }
+
+    @Test
+    void flushGivenUpOnClose(@TempDir File data) throws IOException {
+        final File blocker = blockFirstFlush(data);
+        final Map<ByteBuffer, ByteBuffer> expected;
+        final DAO dao = DAOFactory.create(data, config(2, DAOConfig.WriteStall.BLOCK));
+        try {
+            expected = overwrite(dao);
+        } finally {
+            assertThrows(IOException.class, dao::close);
+        }
+        deleteBlocker(blocker);
+        // Newer tables are given up as well, so all updates are replayed in order
+        try (DAO reopened = DAOFactory.create(data)) {
+            assertValues(reopened, expected);
+        }
+    }
+
+    private static ByteBuffer keyOf(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+
+    @Test
+    void rejectedWrites(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        int rejected = 0;
+        try (MyDAO dao = (MyDAO) DAOFactory.create(data, config(1, DAOConfig.WriteStall.REJECT))) {
+            for (int i = 0; i < 10_000; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                try {
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                } catch (WriteRejectedException e) {
+                    rejected++;
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                }
+            }
+            assertEquals(rejected, dao.getWriteStallStats().getRejections());
+            assertEquals(0, dao.getWriteStallStats().getStalls());
+            assertValues(dao, expected);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertValues(dao, expected);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.dao.murzin.HybridClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link HybridClock} giving timestamps of updates.
+ */
+class HybridClockTest {
+    @Test
+    void monotonic() {
+        long previous = HybridClock.now();
+        for (int i = 0; i < 100_000; i++) {
+            final long current = HybridClock.now();
+            assertTrue(current > previous);
+            previous = current;
+        }
+        // Not behind wall clock, though it may be ahead after timestamps seen by other tests
+        assertTrue(previous / HybridClock.LOGICAL_RANGE >= System.currentTimeMillis() - 1_000);
+    }
+
+    @Test
+    void unique() throws Exception {
+        final int threads = 4;
+        final int count = 50_000;
+        final Set<Long> timestamps = ConcurrentHashMap.newKeySet();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < count; i++) {
+                        assertTrue(timestamps.add(HybridClock.now()));
+                    }
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(threads * count, timestamps.size());
+    }
+
+    @Test
+    void followsSeen() {
+        // Timestamp of a node with wall clock a minute ahead
+        final long seen = (System.currentTimeMillis() + 60_000) * HybridClock.LOGICAL_RANGE;
+        assertTrue(HybridClock.update(seen) > seen);
+        assertTrue(HybridClock.now() > seen);
+        // Older timestamps don`t move the clock back
+        final long current = HybridClock.now();
+        assertTrue(HybridClock.update(0) > current);
+    }
+}
@@ -20,6 +20,9 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
 import org.junit.jupiter.api.Test;
 
+import java.util.Comparator;
+import java.util.Iterator;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 
@@ -55,4 +58,28 @@ class ItersTest {
                 ImmutableList.of(1, 2, 3, 5, 6),
                 ImmutableList.copyOf(collapsed));
     }
+
+    @Test
+    void mergeNewest() {
+        assertFalse(Iters.mergeNewest(
+                ImmutableList.<Iterator<Integer>>of(),
+                Integer::compare,
+                Integer::compare,
+                i -> false).hasNext());
+
+        // Elements are versions, tens are keys and the greatest unit is the newest
+        final Comparator<Integer> keys = Comparator.comparingInt(i -> i / 10);
+        final Comparator<Integer> versions = Comparator.comparingInt(i -> -(i % 10));
+        final ImmutableList<Iterator<Integer>> sources = ImmutableList.of(
+                ImmutableList.of(11, 23, 30, 51).iterator(),
+                ImmutableList.<Integer>of().iterator(),
+                ImmutableList.of(12, 20, 44).iterator(),
+                ImmutableList.of(10, 21, 45, 52, 60).iterator());
+        final Integer[] merged = Iterators.toArray(
+                Iters.mergeNewest(sources, keys, versions, i -> i % 10 == 0),
+                Integer.class);
+        assertEquals(
+                ImmutableList.of(12, 23, 45, 52),
+                ImmutableList.copyOf(merged));
+    }
 }
@@ -0,0 +1,62 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.murzin.DAOConfig;
+import ru.mail.polis.dao.murzin.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for memtable size accounting of {@link DAO}.
+ */
+class MemTableSizeTest extends TestBase {
+    private static void smallValues(
+            final File data,
+            final boolean offHeap) throws IOException {
+        final int count = 1000;
+        final ByteBuffer value = ByteBuffer.allocate(1);
+        final DAOConfig config = new DAOConfig();
+        config.offHeapMemTable = offHeap;
+        try (MyDAO dao = (MyDAO) DAOFactory.create(data, config)) {
+            long payload = 0;
+            for (int i = 0; i < count; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                dao.upsert(key, value);
+                payload += key.remaining() + value.remaining();
+            }
+            assertEquals(payload, dao.getMemTablePayloadSize());
+            // Overhead of entries is much larger than their bytes
+            assertTrue(dao.getMemTableRetainedSize() > 2 * payload);
+        }
+    }
+
+    @Test
+    void heap(@TempDir File data) throws IOException {
+        smallValues(data, false);
+    }
+
+    @Test
+    void offHeap(@TempDir File data) throws IOException {
+        smallValues(data, true);
+    }
+
+    @Test
+    void overwrite(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        try (MyDAO dao = (MyDAO) DAOFactory.create(data)) {
+            dao.upsert(key, randomBuffer(100));
+            final long retained = dao.getMemTableRetainedSize();
+            dao.upsert(key, randomBuffer(10));
+            assertEquals(key.remaining() + 10, dao.getMemTablePayloadSize());
+            assertEquals(retained - 90, dao.getMemTableRetainedSize());
+            dao.remove(key);
+            assertEquals(key.remaining(), dao.getMemTablePayloadSize());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package ru.mail.polis.dao;
+
+import com.google.common.collect.Iterators;
+import ru.mail.polis.dao.murzin.Cell;
+import ru.mail.polis.dao.murzin.Value;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Scan of sorted sources merged by {@link Iters#mergeNewest} and by the stack of
+ * {@link Iterators#mergeSorted}, {@link Iters#collapseEquals} and {@link Iterators#filter} it replaces.
+ * It is a plain timing loop rather than a JMH benchmark, so its numbers are rough:
+ * run it on an idle machine and compare the two merges with each other only.
+ */
+public final class MergeBenchmark {
+    private static final int CELLS = 200_000;
+    private static final int KEYS = 100_000;
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int ITERATIONS = 20;
+    private static final Comparator<Cell> COMPARATOR = Cell.KEY_ORDER.thenComparing(Cell.VERSION_ORDER);
+
+    private MergeBenchmark() {
+        // Not instantiable
+    }
+
+    /**
+     * Spread cells over sources, so keys have versions in several sources and a tenth are tombstones.
+     */
+    private static Cell[][] tables(final int sources) {
+        final Random random = new Random(1);
+        final List<List<Cell>> cells = new ArrayList<>(sources);
+        for (int i = 0; i < sources; i++) {
+            cells.add(new ArrayList<>());
+        }
+        final ByteBuffer value = ByteBuffer.allocate(16);
+        for (int i = 0; i < CELLS; i++) {
+            final ByteBuffer key = ByteBuffer.allocate(Integer.BYTES).putInt(0, random.nextInt(KEYS));
+            final ByteBuffer data = random.nextInt(10) == 0 ? null : value;
+            // Every cell has a timestamp of its own, as ones given by the clock
+            cells.get(random.nextInt(sources)).add(new Cell(key, new Value(i, data)));
+        }
+        final Cell[][] tables = new Cell[sources][];
+        for (int i = 0; i < sources; i++) {
+            final Cell[] table = cells.get(i).toArray(new Cell[0]);
+            Arrays.sort(table, COMPARATOR);
+            tables[i] = collapse(table);
+        }
+        return tables;
+    }
+
+    private static Cell[] collapse(final Cell[] sorted) {
+        final List<Cell> result = new ArrayList<>(sorted.length);
+        for (final Cell cell : sorted) {
+            if (result.isEmpty() || Cell.KEY_ORDER.compare(result.get(result.size() - 1), cell) != 0) {
+                result.add(cell);
+            }
+        }
+        return result.toArray(new Cell[0]);
+    }
+
+    private static List<Iterator<Cell>> iterators(final Cell[][] tables) {
+        final List<Iterator<Cell>> result = new ArrayList<>(tables.length);
+        for (final Cell[] table : tables) {
+            result.add(Arrays.asList(table).iterator());
+        }
+        return result;
+    }
+
+    private static Iterator<Cell> mergeNewest(final List<Iterator<Cell>> iterators) {
+        return Iters.mergeNewest(
+                iterators,
+                Cell.KEY_ORDER,
+                Cell.VERSION_ORDER,
+                cell -> cell.getValue().isRemoved());
+    }
+
+    private static Iterator<Cell> mergeSortedCollapseFilter(final List<Iterator<Cell>> iterators) {
+        return Iterators.filter(
+                Iters.collapseEquals(Iterators.mergeSorted(iterators, COMPARATOR), Cell::getKey),
+                cell -> !cell.getValue().isRemoved());
+    }
+
+    /**
+     * Average time of a full scan in milliseconds, after warm-up.
+     */
+    private static double scan(
+            final Cell[][] tables,
+            final Function<List<Iterator<Cell>>, Iterator<Cell>> merge) {
+        long checksum = 0;
+        long nanos = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+            final long start = System.nanoTime();
+            final Iterator<Cell> cells = merge.apply(iterators(tables));
+            while (cells.hasNext()) {
+                checksum += cells.next().getValue().getTimeStamp();
+            }
+            if (i >= WARMUP_ITERATIONS) {
+                nanos += System.nanoTime() - start;
+            }
+        }
+        // Consumed, so the scan is not optimized away
+        if (checksum == 0) {
+            throw new AssertionError("Nothing is scanned");
+        }
+        return nanos / 1_000_000.0 / ITERATIONS;
+    }
+
+    /**
+     * Print average scan time of both merges for 2, 10 and 100 sources.
+     * @param args not used
+     */
+    public static void main(final String[] args) {
+        for (final int sources : new int[] {2, 10, 100}) {
+            final Cell[][] tables = tables(sources);
+            System.out.printf(
+                    "sources %d: mergeNewest %.1f ms, mergeSortedCollapseFilter %.1f ms%n",
+                    sources,
+                    scan(tables, MergeBenchmark::mergeNewest),
+                    scan(tables, MergeBenchmark::mergeSortedCollapseFilter));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.murzin.DAOConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link DAO} reading SSTables through memory mapped buffers.
+ */
+class MmapTest extends TestBase {
+    @Test
+    void reopen(@TempDir File data) throws IOException {
+        final DAOConfig config = new DAOConfig();
+        config.mmap = true;
+        final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                map.put(key, value);
+            }
+        }
+
+        final ByteBuffer removed = map.firstKey();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : map.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            dao.remove(removed);
+        }
+        map.remove(removed);
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+
+            final Iterator<Record> actualIter = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> expected : map.entrySet()) {
+                final Record actual = actualIter.next();
+                assertEquals(expected.getKey(), actual.getKey());
+                assertEquals(expected.getValue(), actual.getValue());
+            }
+            assertFalse(actualIter.hasNext());
+        }
+    }
+
+    /**
+     * Table of legacy layout which cells start after a hole of given size, so the sparse file
+     * is larger than a mapping can be without taking disk space.
+     */
+    private static void writeSparse(
+            final File file,
+            final long hole,
+            final NavigableMap<ByteBuffer, ByteBuffer> cells) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(hole);
+            final List<Long> offsets = new ArrayList<>(cells.size());
+            for (final Map.Entry<ByteBuffer, ByteBuffer> cell : cells.entrySet()) {
+                offsets.add(out.getFilePointer());
+                final byte[] key = new byte[cell.getKey().remaining()];
+                cell.getKey().duplicate().get(key);
+                final byte[] value = new byte[cell.getValue().remaining()];
+                cell.getValue().duplicate().get(value);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(1);
+                out.writeInt(value.length);
+                out.write(value);
+            }
+            for (final long offset : offsets) {
+                out.writeLong(offset);
+            }
+            out.writeLong(cells.size());
+        }
+    }
+
+    @Test
+    void tableLargerThanMapping(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+        for (int i = 0; i < 100; i++) {
+            map.put(randomKeyBuffer(), randomValueBuffer());
+        }
+        final File table = new File(data, "1_SSTable.dat");
+        writeSparse(table, 3L * 1024 * 1024 * 1024, map);
+        assertTrue(table.length() > Integer.MAX_VALUE);
+
+        final DAOConfig config = new DAOConfig();
+        config.mmap = true;
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : map.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            final Iterator<Record> actualIter = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> expected : map.entrySet()) {
+                final Record actual = actualIter.next();
+                assertEquals(expected.getKey(), actual.getKey());
+                assertEquals(expected.getValue(), actual.getValue());
+            }
+            assertFalse(actualIter.hasNext());
+        }
+    }
+}
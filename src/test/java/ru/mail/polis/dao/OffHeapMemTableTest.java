@@ -0,0 +1,135 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.murzin.DAOConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.mail.polis.dao.DAOAssertions.assertContents;
+import static ru.mail.polis.dao.DAOAssertions.assertRecords;
+import static ru.mail.polis.dao.DAOAssertions.assertValues;
+import static ru.mail.polis.dao.DAOAssertions.config;
+
+/**
+ * Tests for {@link DAO} keeping memtables in off-heap slabs.
+ */
+class OffHeapMemTableTest extends TestBase {
+    private static ByteBuffer randomBytes(final int maxSize) {
+        final byte[] bytes = new byte[1 + ThreadLocalRandom.current().nextInt(maxSize)];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    @Test
+    void orderOfKeys(@TempDir File data) throws IOException {
+        // Keys of different sizes with negative bytes, ordered as ByteBuffer compares them
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final DAOConfig config = new DAOConfig();
+        config.offHeapMemTable = true;
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < 10_000; i++) {
+                final ByteBuffer key = randomBytes(20);
+                if (i % 5 == 0 && expected.containsKey(key)) {
+                    dao.remove(key);
+                    expected.remove(key);
+                } else {
+                    final ByteBuffer value = randomValueBuffer();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+            // Overwrites and removals of present keys
+            final List<ByteBuffer> keys = new ArrayList<>(expected.keySet());
+            for (int i = 0; i < keys.size(); i += 3) {
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(keys.get(i), value);
+                expected.put(keys.get(i), value);
+            }
+            for (int i = 1; i < keys.size(); i += 7) {
+                dao.remove(keys.get(i));
+                expected.remove(keys.get(i));
+            }
+
+            for (final ByteBuffer key : keys) {
+                if (expected.containsKey(key)) {
+                    assertEquals(expected.get(key), dao.get(key));
+                } else {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                }
+            }
+            assertRecords(expected, dao.iterator(ByteBuffer.allocate(0)));
+            final ByteBuffer from = keys.get(keys.size() / 2);
+            assertRecords(expected.tailMap(from, true), dao.iterator(from));
+        }
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            assertRecords(expected, dao.iterator(ByteBuffer.allocate(0)));
+        }
+    }
+
+    @Test
+    void concurrentWrites(@TempDir File data) throws Exception {
+        final int threads = 8;
+        final int keysPerThread = 5_000;
+        final Map<ByteBuffer, ByteBuffer> expected = new ConcurrentSkipListMap<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final DAOConfig config = config(1024 * 1024);
+        config.offHeapMemTable = true;
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final List<Future<?>> futures = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < keysPerThread; i++) {
+                        final ByteBuffer key = randomKeyBuffer();
+                        final ByteBuffer value = randomValueBuffer();
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                        assertEquals(value, dao.get(key));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            assertValues(dao, expected);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void valuesLargerThanSlab(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final DAOConfig config = config(4 * 1024 * 1024);
+        config.offHeapMemTable = true;
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < 10; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomBuffer(3 * 1024 * 1024 / 2);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            assertContents(dao, expected);
+        }
+        try (DAO dao = DAOFactory.create(data, config)) {
+            assertContents(dao, expected);
+        }
+    }
+}
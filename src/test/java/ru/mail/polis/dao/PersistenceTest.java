@@ -21,6 +21,7 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import ru.mail.polis.Files;
 import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.murzin.DAOConfig;
 
 import java.io.File;
 import java.io.IOException;
@@ -34,6 +35,7 @@ import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -257,4 +259,67 @@ class PersistenceTest extends TestBase {
             }
         }
     }
+
+    @Test
+    void ignoreLeftovers(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+
+        // Create storage with a single table
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        assertNotNull(tables);
+        assertEquals(1, tables.length);
+        final byte[] table = java.nio.file.Files.readAllBytes(tables[0].toPath());
+
+        // Replace the table by compaction
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.remove(key);
+            dao.compact();
+        }
+
+        // Resurrect the replaced table as if it was not deleted on crash, leave half-written table
+        java.nio.file.Files.write(tables[0].toPath(), table);
+        final File temp = new File(tables[0].getPath() + ".tmp");
+        java.nio.file.Files.write(temp.toPath(), new byte[] {1, 2, 3});
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+        assertFalse(tables[0].exists());
+        assertFalse(temp.exists());
+    }
+
+    @Test
+    void lazyOpen(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> records = new HashMap<>();
+
+        // Several tables, each written by its own session
+        final int tables = 8;
+        for (int i = 0; i < tables; i++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int j = 0; j < 100; j++) {
+                    final ByteBuffer key = randomKeyBuffer();
+                    final ByteBuffer value = randomValueBuffer();
+                    dao.upsert(key, value);
+                    records.put(key, value);
+                }
+            }
+        }
+
+        // Indexes are loaded on first access and in background
+        for (final int warmUpThreads : new int[] {0, 2}) {
+            final DAOConfig config = new DAOConfig();
+            config.lazyOpen = true;
+            config.warmUpThreads = warmUpThreads;
+            config.compactionThreshold = 0;
+            try (DAO dao = DAOFactory.create(data, config)) {
+                for (final Map.Entry<ByteBuffer, ByteBuffer> record : records.entrySet()) {
+                    assertEquals(record.getValue(), dao.get(record.getKey()));
+                }
+            }
+        }
+    }
 }
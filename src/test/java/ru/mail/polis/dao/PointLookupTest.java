@@ -0,0 +1,134 @@
+package ru.mail.polis.dao;
+
+import com.google.common.cache.CacheStats;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.murzin.DAOConfig;
+import ru.mail.polis.dao.murzin.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.mail.polis.dao.DAOAssertions.assertContents;
+
+/**
+ * Tests for point lookups of {@link DAO} probing the memtable and then SSTables from the newest one,
+ * which stop at the first table containing the key.
+ */
+class PointLookupTest extends TestBase {
+    private static final int KEYS = 1_000;
+    private static final int TABLES = 3;
+
+    private static DAOConfig config() {
+        final DAOConfig config = new DAOConfig();
+        // Tables are kept apart, so every version stays in a table of its own
+        config.compactionThreshold = 0;
+        return config;
+    }
+
+    private static List<ByteBuffer> keys() {
+        final List<ByteBuffer> keys = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            keys.add(randomKeyBuffer());
+        }
+        return keys;
+    }
+
+    private static int tables(final File data) {
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith("_SSTable.dat"));
+        assertNotNull(tables);
+        return tables.length;
+    }
+
+    /**
+     * Write about the given percent of keys, a quarter of them as tombstones.
+     * @param versions newest versions of keys, null for removed keys
+     */
+    private static void update(
+            final DAO dao,
+            final List<ByteBuffer> keys,
+            final int percent,
+            final Map<ByteBuffer, ByteBuffer> versions) throws IOException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (final ByteBuffer key : keys) {
+            if (random.nextInt(100) >= percent) {
+                continue;
+            }
+            if (random.nextInt(4) == 0) {
+                dao.remove(key);
+                versions.put(key, null);
+            } else {
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                versions.put(key, value);
+            }
+        }
+    }
+
+    @Test
+    void newestVersionWins(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = keys();
+        final Map<ByteBuffer, ByteBuffer> versions = new TreeMap<>();
+        for (int i = 0; i < TABLES; i++) {
+            try (DAO dao = DAOFactory.create(data, config())) {
+                // Newer tables overwrite and remove some keys written by older ones and revive some removed
+                update(dao, keys, i == 0 ? 100 : 50, versions);
+            }
+        }
+        assertEquals(TABLES, tables(data));
+
+        try (DAO dao = DAOFactory.create(data, config())) {
+            // Memtable is newer than all tables
+            update(dao, keys, 10, versions);
+
+            final NavigableMap<ByteBuffer, ByteBuffer> alive = new TreeMap<>();
+            for (final Map.Entry<ByteBuffer, ByteBuffer> version : versions.entrySet()) {
+                if (version.getValue() == null) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(version.getKey()));
+                } else {
+                    alive.put(version.getKey(), version.getValue());
+                }
+            }
+            // Lookups agree with iteration, which merges all tables
+            assertContents(dao, alive);
+        }
+    }
+
+    @Test
+    void newestTableProbedOnly(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = keys();
+        final Map<ByteBuffer, ByteBuffer> versions = new TreeMap<>();
+        for (int i = 0; i < TABLES; i++) {
+            try (DAO dao = DAOFactory.create(data, config())) {
+                update(dao, keys, 100, versions);
+            }
+        }
+        assertEquals(TABLES, tables(data));
+
+        try (MyDAO dao = (MyDAO) DAOFactory.create(data, config())) {
+            final CacheStats before = dao.getBlockCacheStats();
+            assertNotNull(before);
+            for (final Map.Entry<ByteBuffer, ByteBuffer> version : versions.entrySet()) {
+                if (version.getValue() == null) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(version.getKey()));
+                } else {
+                    assertEquals(version.getValue(), dao.get(version.getKey()));
+                }
+            }
+            final CacheStats after = dao.getBlockCacheStats();
+            assertNotNull(after);
+            // Every key is in every table, as a value or as a tombstone, but one block is read per lookup
+            assertEquals(KEYS, after.minus(before).requestCount());
+        }
+    }
+}
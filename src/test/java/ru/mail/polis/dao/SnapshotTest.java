@@ -0,0 +1,170 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.mail.polis.dao.DAOAssertions.assertRecords;
+import static ru.mail.polis.dao.DAOAssertions.config;
+
+/**
+ * Tests for {@link Snapshot}s of {@link DAO}.
+ */
+class SnapshotTest extends TestBase {
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(
+            final DAO dao,
+            final int count) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer value = randomValueBuffer();
+            dao.upsert(key, value);
+            records.put(key, value);
+        }
+        return records;
+    }
+
+    private static List<File> tables(final File data) {
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith("_SSTable.dat"));
+        assertNotNull(tables);
+        return Arrays.asList(tables);
+    }
+
+    private static void overwrite(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> records) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>(records.keySet());
+        for (int i = 0; i < keys.size(); i++) {
+            if (i % 3 == 0) {
+                dao.remove(keys.get(i));
+                records.remove(keys.get(i));
+            } else {
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(keys.get(i), value);
+                records.put(keys.get(i), value);
+            }
+        }
+        records.putAll(fill(dao, keys.size() / 2));
+    }
+
+    @Test
+    void repeatableReads(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, config(64 * 1024))) {
+            final NavigableMap<ByteBuffer, ByteBuffer> before = fill(dao, 5_000);
+            try (Snapshot snapshot = dao.snapshot()) {
+                final NavigableMap<ByteBuffer, ByteBuffer> after = new TreeMap<>(before);
+                overwrite(dao, after);
+                dao.compact();
+                overwrite(dao, after);
+
+                assertRecords(before, snapshot.iterator(ByteBuffer.allocate(0)));
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : before.entrySet()) {
+                    assertEquals(entry.getValue(), snapshot.get(entry.getKey()));
+                }
+                final ByteBuffer from = before.keySet().iterator().next();
+                final ByteBuffer to = before.lastKey();
+                assertRecords(before.subMap(from, true, to, false), snapshot.range(from, to));
+
+                assertRecords(after, dao.iterator(ByteBuffer.allocate(0)));
+            }
+        }
+    }
+
+    @Test
+    void emptyMemTable(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            try (Snapshot snapshot = dao.snapshot()) {
+                final ByteBuffer key = randomKeyBuffer();
+                dao.upsert(key, randomValueBuffer());
+                assertThrows(NoSuchElementException.class, () -> snapshot.get(key));
+                assertFalse(snapshot.iterator(ByteBuffer.allocate(0)).hasNext());
+            }
+            final NavigableMap<ByteBuffer, ByteBuffer> records = fill(dao, 100);
+            try (Snapshot first = dao.snapshot(); Snapshot second = dao.snapshot()) {
+                overwrite(dao, new TreeMap<>(records));
+                assertThrows(NoSuchElementException.class, () -> first.get(randomKeyBuffer()));
+                for (final ByteBuffer key : records.keySet()) {
+                    assertEquals(first.get(key), second.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    void noFlushPerSnapshot(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            final List<Snapshot> snapshots = new ArrayList<>();
+            final List<NavigableMap<ByteBuffer, ByteBuffer>> expected = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                records.putAll(fill(dao, 10));
+                snapshots.add(dao.snapshot());
+                expected.add(new TreeMap<>(records));
+            }
+            // Frozen memtables are read along with the current one until it is flushed
+            assertTrue(tables(data).isEmpty());
+            assertRecords(records, dao.iterator(ByteBuffer.allocate(0)));
+            for (int i = 0; i < snapshots.size(); i++) {
+                try (Snapshot snapshot = snapshots.get(i)) {
+                    assertRecords(expected.get(i), snapshot.iterator(ByteBuffer.allocate(0)));
+                }
+            }
+        }
+
+        // All memtables are flushed into a single table
+        assertEquals(1, tables(data).size());
+        try (DAO dao = DAOFactory.create(data)) {
+            assertRecords(records, dao.iterator(ByteBuffer.allocate(0)));
+        }
+    }
+
+    @Test
+    void closeReleasesCompactedTables(@TempDir File data) throws Exception {
+        final NavigableMap<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        for (int i = 0; i < 2; i++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                records.putAll(fill(dao, 100));
+            }
+        }
+        final List<File> compacted = tables(data);
+        assertEquals(2, compacted.size());
+
+        try (DAO dao = DAOFactory.create(data)) {
+            final File manifest = new File(data, "Manifest");
+            final long recorded = manifest.length();
+            final Snapshot snapshot = dao.snapshot();
+            dao.compact();
+            final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+            while (manifest.length() == recorded) {
+                assertTrue(System.nanoTime() < deadline, "Compaction is not done");
+                Thread.sleep(10);
+            }
+            // Taken under the same lock as compacted tables are replaced, so replacement is done
+            dao.snapshot().close();
+
+            // Still read by the snapshot, which is reachable, so only close releases them
+            for (final File table : compacted) {
+                assertTrue(table.exists(), table.getName());
+            }
+            assertRecords(records, snapshot.iterator(ByteBuffer.allocate(0)));
+            snapshot.close();
+            for (final File table : compacted) {
+                assertFalse(table.exists(), table.getName());
+            }
+            assertRecords(records, dao.iterator(ByteBuffer.allocate(0)));
+        }
+    }
+}
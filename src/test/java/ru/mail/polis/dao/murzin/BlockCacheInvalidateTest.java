@@ -0,0 +1,71 @@
+package ru.mail.polis.dao.murzin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link BlockCache} dropping blocks of closed tables only.
+ */
+class BlockCacheInvalidateTest extends TestBase {
+    private static final int BLOCK_SIZE = 4 * 1024;
+    private static final int CELLS = 1_000;
+
+    private static void write(final File file) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        while (records.size() < CELLS) {
+            records.put(randomKeyBuffer(), randomValueBuffer());
+        }
+        FileTable.write(
+                records.entrySet().stream().map(e -> new Cell(e.getKey(), Value.of(e.getValue()))).iterator(),
+                CELLS,
+                BLOCK_SIZE,
+                file);
+    }
+
+    private static void readAll(final FileTable table) throws IOException {
+        final Iterator<Cell> cells = table.iterator(ByteBuffer.allocate(0));
+        int count = 0;
+        while (cells.hasNext()) {
+            cells.next();
+            count++;
+        }
+        assertEquals(CELLS, count);
+    }
+
+    @Test
+    void closedTableBlocksDropped(@TempDir File data) throws IOException {
+        final BlockCache cache = new BlockCache(64 * 1024 * 1024);
+        final File first = new File(data, "1_SSTable.dat");
+        final File second = new File(data, "2_SSTable.dat");
+        write(first);
+        write(second);
+
+        try (FileTable firstTable = new FileTable(first, false, cache);
+             FileTable secondTable = new FileTable(second, false, cache)) {
+            readAll(firstTable);
+            final long firstBlocks = cache.size();
+            assertTrue(firstBlocks > 1);
+            readAll(secondTable);
+            final long secondBlocks = cache.size() - firstBlocks;
+            assertTrue(secondBlocks > 1);
+
+            firstTable.close();
+            assertEquals(secondBlocks, cache.size());
+            // Blocks of the open table are still cached
+            final long hits = cache.stats().hitCount();
+            readAll(secondTable);
+            assertEquals(hits + secondBlocks, cache.stats().hitCount());
+        }
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,101 @@
+package ru.mail.polis.dao.murzin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link FileTableWriter} taking output buffers from the pool shared by all writers.
+ */
+class FileTableWriterTest extends TestBase {
+    private static final int BLOCK_SIZE = 4 * 1024;
+    // Several times larger than output buffer, so both writers write their buffers many times
+    private static final int CELLS = 4 * 1024;
+
+    private static NavigableMap<ByteBuffer, ByteBuffer> records() {
+        final NavigableMap<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        while (records.size() < CELLS) {
+            records.put(randomKeyBuffer(), randomValueBuffer());
+        }
+        return records;
+    }
+
+    private static void assertTable(
+            final File file,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (final boolean mmap : new boolean[] {false, true}) {
+            try (FileTable table = new FileTable(file, mmap, null)) {
+                final Iterator<Cell> cells = table.iterator(ByteBuffer.allocate(0));
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                    final Cell cell = cells.next();
+                    assertEquals(entry.getKey(), cell.getKey());
+                    assertEquals(entry.getValue(), cell.getValue().getData());
+                }
+                assertFalse(cells.hasNext());
+            }
+        }
+    }
+
+    @Test
+    void interleavedWriters(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> first = records();
+        final NavigableMap<ByteBuffer, ByteBuffer> second = records();
+        final File firstFile = new File(data, "1_SSTable.dat");
+        final File secondFile = new File(data, "2_SSTable.dat");
+        // Both are open on the same thread, as a compaction writing a table while another one is written
+        try (FileTableWriter firstWriter = new FileTableWriter(firstFile, BLOCK_SIZE, CELLS);
+             FileTableWriter secondWriter = new FileTableWriter(secondFile, BLOCK_SIZE, CELLS)) {
+            final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> firstRecords = first.entrySet().iterator();
+            final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> secondRecords = second.entrySet().iterator();
+            while (firstRecords.hasNext()) {
+                final Map.Entry<ByteBuffer, ByteBuffer> a = firstRecords.next();
+                firstWriter.append(new Cell(a.getKey(), Value.of(a.getValue())));
+                final Map.Entry<ByteBuffer, ByteBuffer> b = secondRecords.next();
+                secondWriter.append(new Cell(b.getKey(), Value.of(b.getValue())));
+            }
+            firstWriter.finish();
+            secondWriter.finish();
+        }
+        assertTable(firstFile, first);
+        assertTable(secondFile, second);
+    }
+
+    @Test
+    void buffersReturnedToPool(@TempDir File data) throws IOException {
+        // Fill the pool, so each writer below takes a pooled buffer
+        final File file = new File(data, "1_SSTable.dat");
+        final FileTableWriter[] writers = new FileTableWriter[4];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new FileTableWriter(new File(data, i + "_SSTable.dat"), BLOCK_SIZE, 1);
+        }
+        for (final FileTableWriter writer : writers) {
+            writer.close();
+        }
+        final int pooled = FileTableWriter.pooledOutputs();
+        assertTrue(pooled > 0);
+
+        try (FileTableWriter writer = new FileTableWriter(file, BLOCK_SIZE, 1)) {
+            assertEquals(pooled - 1, FileTableWriter.pooledOutputs());
+            writer.append(new Cell(randomKeyBuffer(), Value.of(randomValueBuffer())));
+            writer.finish();
+        }
+        assertEquals(pooled, FileTableWriter.pooledOutputs());
+
+        // Unfinished writer gives its buffer back as well
+        final FileTableWriter failed = new FileTableWriter(file, BLOCK_SIZE, 1);
+        assertEquals(pooled - 1, FileTableWriter.pooledOutputs());
+        failed.close();
+        assertEquals(pooled, FileTableWriter.pooledOutputs());
+        assertFalse(new File(file.getPath() + FileTableWriter.TEMP).exists());
+    }
+}
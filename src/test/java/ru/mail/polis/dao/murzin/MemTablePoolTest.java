@@ -0,0 +1,123 @@
+package ru.mail.polis.dao.murzin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link MemTablePool} replacing memtables while many writers put to them without a lock.
+ * Tables taken for flush are read by the test instead of flushers.
+ */
+class MemTablePoolTest extends TestBase {
+    private static final int WRITERS = 8;
+    private static final int WRITES = 5_000;
+
+    private static ByteBuffer keyOf(
+            final int writer,
+            final int i) {
+        return ByteBuffer.allocate(Integer.BYTES * 2).putInt(0, writer).putInt(Integer.BYTES, i);
+    }
+
+    private static int count(final Iterator<Cell> cells) {
+        int count = 0;
+        while (cells.hasNext()) {
+            cells.next();
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    void rotationLosesNoWrites(@TempDir File data) {
+        assertTimeoutPreemptively(Duration.ofMinutes(1), () -> {
+            final DAOConfig config = new DAOConfig();
+            // A few hundred updates per memtable, so writers race with many rotations
+            config.flushThreshold = 16 * 1024;
+            config.flushThreads = 1;
+            config.flushQueueDepth = 4;
+            final CommitLog commitLog = new CommitLog(data, DAOConfig.Durability.NONE, 0);
+            final MemTablePool pool = new MemTablePool(config, 1, commitLog);
+
+            // Rows and cells of every table when it is taken for flush, by generation
+            final Map<Integer, int[]> taken = new ConcurrentHashMap<>();
+            final Thread flusher = new Thread(() -> {
+                try {
+                    while (true) {
+                        final TableToFlush toFlush = pool.takeToFlush();
+                        if (toFlush.isPoisonPill()) {
+                            return;
+                        }
+                        final int cells = count(toFlush.getTableIterator());
+                        taken.put(toFlush.getGeneration(), new int[] {toFlush.getRows(), cells});
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            flusher.start();
+
+            final AtomicBoolean writing = new AtomicBoolean(true);
+            // Snapshots replace memtables as well, without queueing them
+            final Thread freezer = new Thread(() -> {
+                while (writing.get()) {
+                    pool.freeze();
+                    Thread.yield();
+                }
+            });
+            freezer.start();
+            final List<Thread> writers = new ArrayList<>(WRITERS);
+            for (int w = 0; w < WRITERS; w++) {
+                final int writer = w;
+                writers.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < WRITES; i++) {
+                            pool.upsert(keyOf(writer, i), randomBuffer(16));
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+            writers.forEach(Thread::start);
+            for (final Thread writer : writers) {
+                writer.join();
+            }
+            writing.set(false);
+            freezer.join();
+            pool.close();
+            flusher.join();
+            commitLog.close();
+
+            assertTrue(taken.size() > 10, "Rotations " + taken.size());
+            final Set<ByteBuffer> keys = new HashSet<>();
+            for (final Map.Entry<Integer, int[]> table : taken.entrySet()) {
+                assertEquals(table.getValue()[0], table.getValue()[1]);
+                // No writer put to the table after it was taken
+                final Iterator<Cell> cells = pool.pendingCells(table.getKey());
+                int count = 0;
+                while (cells.hasNext()) {
+                    assertTrue(keys.add(cells.next().getKey()));
+                    count++;
+                }
+                assertEquals(table.getValue()[1], count);
+            }
+            assertEquals(WRITERS * WRITES, keys.size());
+        });
+    }
+}
@@ -0,0 +1,109 @@
+package ru.mail.polis.service;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for batch write {@link Service} API.
+ */
+class BatchTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static File data;
+    private static DAO dao;
+    private static Service storage;
+    private static HttpClient client;
+
+    @BeforeAll
+    static void beforeAll() throws Exception {
+        final int port = randomPort();
+        data = Files.createTempDirectory();
+        dao = DAOFactory.create(data);
+        storage = ServiceFactory.create(port, dao, Collections.singleton(endpoint(port)));
+        storage.start();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+        client = new HttpClient(
+                new ConnectionString(
+                        "http://localhost:" + port
+                                + "?timeout=" + (TIMEOUT.toMillis() / 2)));
+    }
+
+    @AfterAll
+    static void afterAll() throws IOException {
+        client.close();
+        storage.stop();
+        dao.close();
+        Files.recursiveDelete(data);
+    }
+
+    private static void put(
+            final DataOutputStream out,
+            final byte[] chunk) throws IOException {
+        if (chunk == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(chunk.length);
+            out.write(chunk);
+        }
+    }
+
+    private static byte[] key(final int i) {
+        return ("key" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void upsertAndRemove() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(body);
+            final byte[][] values = new byte[100][];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = randomValue();
+                put(out, key(i));
+                put(out, values[i]);
+            }
+            put(out, key(0));
+            put(out, null);
+
+            assertEquals(201, client.put("/v0/batch", body.toByteArray()).getStatus());
+
+            assertEquals(404, client.get("/v0/entity?id=key0").getStatus());
+            for (int i = 1; i < values.length; i++) {
+                final Response response = client.get("/v0/entity?id=key" + i);
+                assertEquals(200, response.getStatus());
+                assertArrayEquals(values[i], response.getBody());
+            }
+        });
+    }
+
+    @Test
+    void truncated() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(body);
+            put(out, key(0));
+            out.writeInt(10);
+            out.write(new byte[5]);
+
+            assertEquals(400, client.put("/v0/batch", body.toByteArray()).getStatus());
+        });
+    }
+}
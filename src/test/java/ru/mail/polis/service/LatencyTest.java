@@ -0,0 +1,106 @@
+package ru.mail.polis.service;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+import ru.mail.polis.service.murzin.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for latency histograms of {@link Service} endpoints.
+ */
+class LatencyTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static File data;
+    private static DAO dao;
+    private static Service storage;
+    private static HttpClient client;
+
+    @BeforeAll
+    static void beforeAll() throws Exception {
+        final int port = randomPort();
+        data = Files.createTempDirectory();
+        dao = DAOFactory.create(data);
+        storage = ServiceFactory.create(port, dao, Collections.singleton(endpoint(port)));
+        storage.start();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+        client = new HttpClient(
+                new ConnectionString(
+                        "http://localhost:" + port
+                                + "?timeout=" + (TIMEOUT.toMillis() / 2)));
+    }
+
+    @AfterAll
+    static void afterAll() throws IOException {
+        client.close();
+        storage.stop();
+        dao.close();
+        Files.recursiveDelete(data);
+    }
+
+    @Test
+    void percentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(0.99));
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        assertEquals(1000, histogram.count());
+        final long median = histogram.percentile(0.5);
+        assertTrue(median >= TimeUnit.MICROSECONDS.toNanos(500), "Median " + median);
+        assertTrue(median < TimeUnit.MICROSECONDS.toNanos(500) * 9 / 8, "Median " + median);
+        final long max = histogram.percentile(1.0);
+        assertTrue(max >= TimeUnit.MICROSECONDS.toNanos(1000), "Max " + max);
+        assertTrue(max < TimeUnit.MICROSECONDS.toNanos(1000) * 9 / 8, "Max " + max);
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.percentile(1.0));
+        assertThrows(IllegalArgumentException.class, () -> histogram.percentile(0.0));
+    }
+
+    private static Map<String, Long> counts() throws Exception {
+        final Response response = client.get("/v0/latency");
+        assertEquals(200, response.getStatus());
+        final Map<String, Long> counts = new HashMap<>();
+        for (final String line : response.getBodyUtf8().split("\n")) {
+            final String[] fields = line.split(" ");
+            assertEquals(5, fields.length, line);
+            counts.put(fields[0], Long.parseLong(fields[1]));
+        }
+        return counts;
+    }
+
+    @Test
+    void countsRequests() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final Map<String, Long> before = counts();
+            final byte[] value = randomValue();
+            assertEquals(201, client.put("/v0/entity?id=latency", value).getStatus());
+            assertArrayEquals(value, client.get("/v0/entity?id=latency").getBody());
+            assertEquals(404, client.get("/v0/entity?id=absent").getStatus());
+            assertEquals(200, client.get("/v0/entities?start=latency").getStatus());
+
+            final Map<String, Long> after = counts();
+            assertEquals(before.get("/v0/entity") + 3, after.get("/v0/entity"));
+            assertEquals(before.get("/v0/entities") + 1, after.get("/v0/entities"));
+            assertEquals(before.get("/v0/batch"), after.get("/v0/batch"));
+        });
+    }
+}
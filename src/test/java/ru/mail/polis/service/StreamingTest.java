@@ -0,0 +1,330 @@
+package ru.mail.polis.service;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.Snapshot;
+import ru.mail.polis.service.murzin.SimpleHttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for ranges streamed by {@link Service} as chunked responses:
+ * a client reading slower than records are read, requests pipelined after a streamed response
+ * and connections closed after it.
+ */
+class StreamingTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int RECORDS = 4_000;
+    private static final int VALUE_SIZE = 8 * 1024;
+    private int port;
+    private Service storage;
+
+    /**
+     * Storage of generated records, which counts records read from it.
+     */
+    private static final class GeneratedDAO implements DAO {
+        private final AtomicInteger read = new AtomicInteger();
+
+        @NotNull
+        @Override
+        public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
+            int first = 0;
+            while (first < RECORDS && keyOf(first).compareTo(from) < 0) {
+                first++;
+            }
+            final int start = first;
+            return new Iterator<>() {
+                private int next = start;
+
+                @Override
+                public boolean hasNext() {
+                    return next < RECORDS;
+                }
+
+                @Override
+                public Record next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    read.incrementAndGet();
+                    final int i = next++;
+                    return Record.of(keyOf(i), valueOf(i));
+                }
+            };
+        }
+
+        @NotNull
+        @Override
+        public Snapshot snapshot() {
+            // Records never change, so the storage is a snapshot of itself
+            return new Snapshot() {
+                @NotNull
+                @Override
+                public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
+                    return GeneratedDAO.this.iterator(from);
+                }
+
+                @NotNull
+                @Override
+                public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException {
+                    return GeneratedDAO.this.get(key);
+                }
+
+                @Override
+                public void close() {
+                    // Nothing is held
+                }
+            };
+        }
+
+        @Override
+        public void upsert(
+                @NotNull final ByteBuffer key,
+                @NotNull final ByteBuffer value) {
+            throw new UnsupportedOperationException("Read only");
+        }
+
+        @Override
+        public void remove(@NotNull final ByteBuffer key) {
+            throw new UnsupportedOperationException("Read only");
+        }
+
+        @Override
+        public void close() {
+            // Nothing to close
+        }
+    }
+
+    private static ByteBuffer keyOf(final int i) {
+        return ByteBuffer.wrap(String.format(Locale.ROOT, "key%06d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static ByteBuffer valueOf(final int i) {
+        final byte[] value = new byte[VALUE_SIZE];
+        Arrays.fill(value, (byte) i);
+        return ByteBuffer.wrap(value);
+    }
+
+    private static byte[] chunkOf(final int i) {
+        final ByteBuffer key = keyOf(i);
+        final ByteBuffer value = valueOf(i);
+        return ByteBuffer.allocate(key.remaining() + 1 + value.remaining())
+                .put(key)
+                .put((byte) '\n')
+                .put(value)
+                .array();
+    }
+
+    /**
+     * Response read from raw socket, with chunks of chunked body or the whole body as a single chunk.
+     */
+    private static final class RawResponse {
+        private final int status;
+        private final Map<String, String> headers;
+        private final List<byte[]> chunks;
+
+        RawResponse(
+                final int status,
+                final Map<String, String> headers,
+                final List<byte[]> chunks) {
+            this.status = status;
+            this.headers = headers;
+            this.chunks = chunks;
+        }
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed");
+            }
+            if (b == '\n') {
+                final byte[] bytes = line.toByteArray();
+                return new String(bytes, 0, bytes.length - 1, StandardCharsets.US_ASCII);
+            }
+            line.write(b);
+        }
+    }
+
+    private static byte[] readBytes(
+            final InputStream in,
+            final int size) throws IOException {
+        final byte[] bytes = new byte[size];
+        int read = 0;
+        while (read < size) {
+            final int n = in.read(bytes, read, size - read);
+            if (n < 0) {
+                throw new EOFException("Connection closed");
+            }
+            read += n;
+        }
+        return bytes;
+    }
+
+    private static RawResponse readResponse(final InputStream in) throws IOException {
+        final String statusLine = readLine(in);
+        final int status = Integer.parseInt(statusLine.split(" ", -1)[1]);
+        final Map<String, String> headers = new HashMap<>();
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            final int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+        final List<byte[]> chunks = new ArrayList<>();
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            while (true) {
+                final int size = Integer.parseInt(readLine(in), 16);
+                if (size == 0) {
+                    assertEquals("", readLine(in));
+                    break;
+                }
+                chunks.add(readBytes(in, size));
+                assertEquals("", readLine(in));
+            }
+        } else {
+            chunks.add(readBytes(in, Integer.parseInt(headers.getOrDefault("content-length", "0"))));
+        }
+        return new RawResponse(status, headers, chunks);
+    }
+
+    private static void assertRange(
+            final RawResponse response,
+            final int from,
+            final int to) {
+        assertEquals(200, response.status);
+        assertEquals(to - from, response.chunks.size());
+        for (int i = from; i < to; i++) {
+            assertArrayEquals(chunkOf(i), response.chunks.get(i - from));
+        }
+    }
+
+    private static String get(
+            final String path,
+            final String headers) {
+        return "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" + headers + "\r\n";
+    }
+
+    private Socket connect() throws IOException {
+        final Socket socket = new Socket();
+        // Small window, so the server can`t put the whole range to socket buffers
+        socket.setReceiveBufferSize(16 * 1024);
+        socket.connect(new InetSocketAddress("localhost", port));
+        socket.setSoTimeout((int) TIMEOUT.toMillis() / 2);
+        return socket;
+    }
+
+    private GeneratedDAO start() throws IOException {
+        final GeneratedDAO dao = new GeneratedDAO();
+        port = randomPort();
+        storage = new SimpleHttpServer(port, dao, 2, 4);
+        storage.start();
+        return dao;
+    }
+
+    @AfterEach
+    void stop() {
+        if (storage != null) {
+            storage.stop();
+        }
+    }
+
+    @Test
+    void slowReader() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final GeneratedDAO dao = start();
+            try (Socket socket = connect()) {
+                socket.getOutputStream().write(get("/v0/entities?start=key", "").getBytes(StandardCharsets.US_ASCII));
+
+                // Records are read only as fast as the client takes them
+                Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+                final int readBeforeClient = dao.read.get();
+                assertTrue(readBeforeClient > 0);
+                assertTrue(readBeforeClient < RECORDS / 2, "Read " + readBeforeClient);
+
+                final RawResponse response = readResponse(new BufferedInputStream(socket.getInputStream()));
+                assertEquals("Keep-Alive", response.headers.get("connection"));
+                assertRange(response, 0, RECORDS);
+            }
+        });
+    }
+
+    @Test
+    void pipelinedAfterStream() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            start();
+            try (Socket socket = connect()) {
+                // The second range is taken for handling only once the first one is streamed
+                final String requests = get("/v0/entities?start=key", "")
+                        + get("/v0/status", "")
+                        + get("/v0/entities?start=key000010&end=key000020", "");
+                socket.getOutputStream().write(requests.getBytes(StandardCharsets.US_ASCII));
+
+                final InputStream in = new BufferedInputStream(socket.getInputStream());
+                assertRange(readResponse(in), 0, RECORDS);
+                assertEquals(200, readResponse(in).status);
+                assertRange(readResponse(in), 10, 20);
+            }
+        });
+    }
+
+    @Test
+    void connectionClose() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            start();
+            try (Socket socket = connect()) {
+                final String request = get("/v0/entities?start=key&end=key001000", "Connection: close\r\n");
+                socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+
+                final InputStream in = new BufferedInputStream(socket.getInputStream());
+                final RawResponse response = readResponse(in);
+                assertEquals("close", response.headers.get("connection"));
+                assertRange(response, 0, 1000);
+                // Closed by the server once the last chunk is sent
+                assertEquals(-1, in.read());
+            }
+        });
+    }
+
+    @Test
+    void http10WithoutKeepAlive() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            start();
+            try (Socket socket = connect()) {
+                final String request = "GET /v0/entities?start=key&end=key000100 HTTP/1.0\r\n\r\n";
+                socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+
+                final InputStream in = new BufferedInputStream(socket.getInputStream());
+                final RawResponse response = readResponse(in);
+                assertEquals("close", response.headers.get("connection"));
+                assertRange(response, 0, 100);
+                assertEquals(-1, in.read());
+            }
+        });
+    }
+}
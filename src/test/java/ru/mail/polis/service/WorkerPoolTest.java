@@ -0,0 +1,181 @@
+package ru.mail.polis.service;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.Snapshot;
+import ru.mail.polis.service.murzin.SimpleHttpServer;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for worker pools of {@link Service} running storage requests.
+ */
+class WorkerPoolTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private final List<HttpClient> clients = new ArrayList<>();
+    private int port;
+    private Service storage;
+
+    /**
+     * Storage which reads are held until released or fail.
+     */
+    private static final class StubDAO implements DAO {
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private volatile boolean fail;
+
+        @NotNull
+        @Override
+        public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
+            throw new IllegalStateException("SSTable can`t be read");
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer get(@NotNull final ByteBuffer key) {
+            if (fail) {
+                throw new IllegalStateException("SSTable can`t be read");
+            }
+            entered.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ByteBuffer.wrap(new byte[]{1});
+        }
+
+        @NotNull
+        @Override
+        public Snapshot snapshot() {
+            // Nothing is stored, so reads of the snapshot go to the storage itself
+            return new Snapshot() {
+                @NotNull
+                @Override
+                public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
+                    return StubDAO.this.iterator(from);
+                }
+
+                @NotNull
+                @Override
+                public ByteBuffer get(@NotNull final ByteBuffer key) {
+                    return StubDAO.this.get(key);
+                }
+
+                @Override
+                public void close() {
+                    // Nothing is held
+                }
+            };
+        }
+
+        @Override
+        public void upsert(
+                @NotNull final ByteBuffer key,
+                @NotNull final ByteBuffer value) {
+            // Not stored
+        }
+
+        @Override
+        public void remove(@NotNull final ByteBuffer key) {
+            // Not stored
+        }
+
+        @Override
+        public void close() {
+            released.countDown();
+        }
+    }
+
+    private void start(
+            final DAO dao,
+            final int workers,
+            final int queueDepth) throws Exception {
+        port = randomPort();
+        storage = new SimpleHttpServer(port, dao, workers, queueDepth);
+        storage.start();
+    }
+
+    private HttpClient client() {
+        final HttpClient client = new HttpClient(
+                new ConnectionString(
+                        "http://localhost:" + port
+                                + "?timeout=" + (TIMEOUT.toMillis() / 2)));
+        clients.add(client);
+        return client;
+    }
+
+    @AfterEach
+    void stop() {
+        clients.forEach(HttpClient::close);
+        if (storage != null) {
+            storage.stop();
+        }
+    }
+
+    @Test
+    void runtimeFailure() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final StubDAO dao = new StubDAO();
+            dao.fail = true;
+            start(dao, 1, 1);
+            final HttpClient client = client();
+            assertEquals(500, client.get("/v0/entity?id=key").getStatus());
+            assertEquals(500, client.get("/v0/entities?start=key").getStatus());
+            // The connection goes on with the next requests
+            assertEquals(200, client.get("/v0/status").getStatus());
+            dao.close();
+        });
+    }
+
+    @Test
+    void queueFull() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final StubDAO dao = new StubDAO();
+            start(dao, 1, 1);
+            final ExecutorService executor = Executors.newCachedThreadPool();
+            try {
+                // The only worker is held by the first read
+                final HttpClient first = client();
+                final Future<Response> held = executor.submit(() -> first.get("/v0/entity?id=key"));
+                dao.entered.await();
+
+                // One of the next reads waits in the queue, and the other is rejected at once
+                final ExecutorCompletionService<Response> next = new ExecutorCompletionService<>(executor);
+                for (int i = 0; i < 2; i++) {
+                    final HttpClient client = client();
+                    next.submit(() -> client.get("/v0/entity?id=key"));
+                }
+                final Response rejected = next.take().get();
+                assertEquals(503, rejected.getStatus());
+                assertEquals("1", rejected.getHeader("Retry-After: "));
+                // Writes have their own pool
+                assertEquals(201, client().put("/v0/entity?id=key", new byte[]{1}).getStatus());
+
+                dao.close();
+                assertEquals(200, held.get().getStatus());
+                assertEquals(200, next.take().get().getStatus());
+            } finally {
+                executor.shutdownNow();
+            }
+        });
+    }
+}
@@ -0,0 +1,70 @@
+package ru.mail.polis.service;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+import ru.mail.polis.dao.murzin.DAOConfig;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link Service} answering writes while storage can`t keep up with flushes.
+ */
+class WriteStallTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int MAX_WRITES = 10_000;
+
+    private static void assertUnavailable(final DAOConfig.WriteStall writeStall) throws Exception {
+        // Every write replaces memtable, and the only flusher can`t keep up with them
+        final DAOConfig config = new DAOConfig();
+        config.flushThreshold = 0;
+        config.flushThreads = 1;
+        config.flushQueueDepth = 1;
+        config.writeStall = writeStall;
+        final int port = randomPort();
+        final File data = Files.createTempDirectory();
+        final DAO dao = DAOFactory.create(data, config);
+        final Service storage = ServiceFactory.create(port, dao, Collections.singleton(endpoint(port)));
+        storage.start();
+        final HttpClient client = new HttpClient(
+                new ConnectionString(
+                        "http://localhost:" + port
+                                + "?timeout=" + (TIMEOUT.toMillis() / 2)));
+        try {
+            Response response = null;
+            for (int i = 0; i < MAX_WRITES; i++) {
+                response = client.put("/v0/entity?id=" + randomId(), randomValue());
+                if (response.getStatus() != 201) {
+                    break;
+                }
+            }
+            assertNotNull(response);
+            assertEquals(503, response.getStatus());
+            assertEquals("1", response.getHeader("Retry-After: "));
+        } finally {
+            client.close();
+            storage.stop();
+            dao.close();
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void rejectedWrites() {
+        assertTimeoutPreemptively(TIMEOUT, () -> assertUnavailable(DAOConfig.WriteStall.REJECT));
+    }
+
+    @Test
+    void blockedWrites() {
+        assertTimeoutPreemptively(TIMEOUT, () -> assertUnavailable(DAOConfig.WriteStall.BLOCK));
+    }
+}